@@ -22,6 +22,8 @@ import jmips.cpu.Mips;
  * @author Humberto Silva Naves
  */
 public final class GdbStub {
+	private static final long IDLE_TIMEOUT = 50; // Maximum time to sleep when the guest is idle
+
 	private final MipsSystem system;
 	private List<Integer> breakPoints;
 
@@ -79,7 +81,12 @@ public final class GdbStub {
 
 		while(serverRunning) {
 			try {
-				selector.select(50);
+				if (simulationRunning) {
+					// The simulation sleeps by itself when the guest is idle
+					selector.selectNow();
+				} else {
+					selector.select(50);
+				}
 				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
 				while (selectedKeys.hasNext()) {
 					SelectionKey key = selectedKeys.next();
@@ -380,6 +387,7 @@ public final class GdbStub {
 					break;
 				} else {
 					system.step(100000);
+					if (system.idle(IDLE_TIMEOUT)) break;
 				}
 			}
 		}
@@ -437,28 +445,30 @@ public final class GdbStub {
 				int divider = command.indexOf(",");
 				int address = (int) Long.parseLong(command.substring(1, divider), 16);
 				if (command.startsWith("m")) {
-					int len = Integer.parseInt(command.substring(divider + 1));
-					int val;
-					String resp = "00";
-					switch(len) {
-					case 1: val = stub.system.getCpu().load8(address) & 0xFF;
-						resp = String.format("%02X", val); break;
-					case 2: val = stub.system.getCpu().load16(address) & 0xFFFF;
-						resp = String.format("%04X", val); break;
-					case 4: val = stub.system.getCpu().load32(address);
-						resp = String.format("%08X", val); break;
+					int len = Integer.parseInt(command.substring(divider + 1), 16);
+					byte[] data = new byte[len];
+					if (stub.system.getCpu().loadBytes(address, data, 0, len)) {
+						StringBuilder sb = new StringBuilder();
+						for(int i = 0; i < len; i++) {
+							sb.append(String.format("%02X", data[i] & 0xFF));
+						}
+						stub.makePacketAndSend(sb.toString(), true);
+					} else {
+						stub.makePacketAndSend("E01", true);
 					}
-					stub.makePacketAndSend(resp, true);
 				} else {
 					int divider2 = command.indexOf(":");
-					int len = Integer.parseInt(command.substring(divider + 1, divider2));
-					int val = (int) Long.parseLong(command.substring(divider2 + 1), 16);
-					switch(len) {
-					case 1: stub.system.getCpu().write8(address, (byte) val); break;
-					case 2: stub.system.getCpu().write16(address, (short) val); break;
-					case 4: stub.system.getCpu().write32(address, val); break;
+					int len = Integer.parseInt(command.substring(divider + 1, divider2), 16);
+					byte[] data = new byte[len];
+					for(int i = 0; i < len; i++) {
+						int pos = divider2 + 1 + 2 * i;
+						data[i] = (byte) Integer.parseInt(command.substring(pos, pos + 2), 16);
+					}
+					if (stub.system.getCpu().storeBytes(address, data, 0, len)) {
+						stub.makePacketAndSend("OK", true);
+					} else {
+						stub.makePacketAndSend("E01", true);
 					}
-					stub.makePacketAndSend("OK", true);
 				}
 			}
 		};
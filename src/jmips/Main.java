@@ -76,6 +76,8 @@ public class Main {
 			}
 		}
 
+		System.out.printf("Files loaded in %d ms\n", system.getLoadTime());
+
 		system.reset();
 		GdbStub stub = new GdbStub(system);
 		stub.runServer(1234, stop);
@@ -4,7 +4,10 @@ import java.nio.ByteBuffer;
 
 import jmips.cpu.Cpu;
 import jmips.cpu.Device;
+import jmips.cpu.Event;
+import jmips.cpu.ExecutionEngine;
 import jmips.cpu.Mips;
+import jmips.cpu.Ram;
 import jmips.dev.BlockDevice;
 import jmips.dev.BlockDeviceController;
 import jmips.dev.RealTimeClock;
@@ -32,6 +35,10 @@ public final class MipsSystem {
 	public static final int UART_IRQ = 1;                   // IRQ number for the UART
 
 	public static final int DEFAULT_RAM_SIZE = 64 * 1024 * 1024; // The default size of the RAM
+	public static final int DEFAULT_CPU_FREQUENCY = 100 * 1000 * 1000; // Nominal number of cycles per second
+
+	private static final long IDLE_POLL_INTERVAL = 10; // Milliseconds between polls of the TTY when idle
+	private static final long UART_TIMEOUT_CYCLES = 40000; // Receive timeout of the UART (about 4 characters)
 
 	private final Cpu cpu;
 	private final Uart uart;
@@ -40,13 +47,41 @@ public final class MipsSystem {
 	private final TTY tty;
 	private final Elf32LabelResolver labelResolver;
 	private int entryPoint;
+	private int cpuFrequency = DEFAULT_CPU_FREQUENCY;
+	private long loadTime; // Nanoseconds spent loading files
+
+	private final Event uartTimeoutEvent = new Event() {
+		@Override
+		public void fire() {
+			uart.expireReceiveBufferData();
+			if (uart.hasReceiveData())
+				scheduleAfter(this, UART_TIMEOUT_CYCLES);
+		}
+	};
 
 	public MipsSystem(TTY tty) {
 		this(DEFAULT_RAM_SIZE, tty);
 	}
 
 	public MipsSystem(int ramSize, TTY tty) {
-		this.cpu = createCpu(ramSize);
+		this(ramSize, Mips.NUM_TLB_ENTRIES, tty);
+	}
+
+	public MipsSystem(int ramSize, int numTlbEntries, TTY tty) {
+		this(new Ram(ramSize), numTlbEntries, tty);
+	}
+
+	// The ram can be a DirectRam to keep the memory outside of the heap,
+	// or a SparseRam to allocate it only when it is used
+	public MipsSystem(Ram ram, int numTlbEntries, TTY tty) {
+		this(ram, numTlbEntries, null, tty);
+	}
+
+	// The engine (such as a RecompilingEngine) executes the instructions
+	// together with the interpreter, which is used alone if it is null
+	public MipsSystem(Ram ram, int numTlbEntries, ExecutionEngine engine, TTY tty) {
+		this.cpu = createCpu(ram, numTlbEntries);
+		this.cpu.setExecutionEngine(engine);
 		this.uart = createUart();
 		this.rtc = createRealTimeClock();
 		this.block = createBlockDevice();
@@ -55,7 +90,7 @@ public final class MipsSystem {
 		this.cpu.setLabelResolver(this.labelResolver);
 	}
 
-	private Cpu createCpu(int ramSize) {
+	private Cpu createCpu(Ram ram, int numTlbEntries) {
 		final Device ioController = new Device() {
 			private boolean error;
 			private int deviceOffset;
@@ -165,7 +200,7 @@ public final class MipsSystem {
 			}
 			
 		};
-		Cpu cpu = new Cpu(ramSize, ioController);
+		Cpu cpu = new Cpu(ram, numTlbEntries, ioController);
 		return cpu;
 	}
 
@@ -194,26 +229,12 @@ public final class MipsSystem {
 		final BlockDeviceController controller = new BlockDeviceController() {
 			@Override
 			public boolean readFromMemory(ByteBuffer sector, int address) {
-				while(sector.hasRemaining()) {
-					byte b = cpu.load8(address);
-					if (cpu.getLastMemoryError() != Mips.MEMORY_ERROR_NOERROR)
-						return false;
-					sector.put(b);
-					address++;
-				}
-				return true;
+				return cpu.loadBytes(address, sector);
 			}
 
 			@Override
 			public boolean writeToMemory(ByteBuffer sector, int address) {
-				while(sector.hasRemaining()) {
-					byte b = sector.get();
-					cpu.store8(address, b);
-					if (cpu.getLastMemoryError() != Mips.MEMORY_ERROR_NOERROR)
-						return false;
-					address++;
-				}
-				return true;
+				return cpu.storeBytes(address, sector);
 			}
 		};
 		BlockDevice block = new BlockDevice(controller);
@@ -254,31 +275,49 @@ public final class MipsSystem {
 
 	public void setKernelCommandLine(String cmdLine, int address) {
 		cpu.setGpr(Mips.GPR_A0, address);
+		byte[] data = new byte[cmdLine.length() + 1];
 		for (int i = 0; i < cmdLine.length(); i++) {
-			byte b = (byte) cmdLine.charAt(i);
-			cpu.store8(address, b);
-			address++;
+			data[i] = (byte) cmdLine.charAt(i);
 		}
-		cpu.store8(address, (byte) 0);
+		cpu.storeBytes(address, data, 0, data.length);
 	}
 
 	public boolean setDiskFile(String fileName) {
 		return block.setDiskFile(fileName);
 	}
 
+	// Whether the range is inside kseg0 or kseg1, so that it can be
+	// accessed without going through the MMU
+	private static boolean isUnmapped(int address, int length) {
+		int end = address + length - 1;
+		return (address & 0xC0000000) == 0x80000000 &&
+		       (address & 0xE0000000) == (end & 0xE0000000);
+	}
+
 	public int load(int address, ByteBuffer bb) {
-		while(bb.hasRemaining()) {
-			byte data = bb.get();
-			cpu.store8(address, data);
-			address++;
-		}
-		return address;
+		int length = bb.remaining();
+		if (!isUnmapped(address, length) || !cpu.storeBytesPhys(address & 0x1FFFFFFF, bb))
+			cpu.storeBytes(address, bb);
+		return address + length;
+	}
+
+	private void zero(int address, int length) {
+		if (!isUnmapped(address, length) || !cpu.zeroBytesPhys(address & 0x1FFFFFFF, length))
+			cpu.storeBytes(address, new byte[length], 0, length);
 	}
 
 	public int load(int address, String fileName) {
-		ByteBuffer bb = FileUtils.readFile(fileName);
+		long start = System.nanoTime();
+		ByteBuffer bb = FileUtils.mapFile(fileName);
 		if (bb == null) return 0;
-		return load(address, bb);
+		int ret = load(address, bb);
+		loadTime += System.nanoTime() - start;
+		return ret;
+	}
+
+	// Time spent loading files into memory, in milliseconds
+	public long getLoadTime() {
+		return loadTime / 1000000;
 	}
 
 	public int loadElf32(ByteBuffer bb) {
@@ -289,12 +328,17 @@ public final class MipsSystem {
 			setEntryPoint(elf.getEntry());
 			for(int i = 0; i < elf.getNumPrograms(); i++) {
 				Elf32Program program = elf.getProgram(i);
-				if (program != null && program.getType() == Elf32Program.PT_LOAD &&
-						program.getFileSize() != 0) {
-					ByteBuffer data = program.getData();
-					int ret = load(program.getVirtualAddress(), data);
-					if (lastAddress < ret || lastAddress == 0)
-						lastAddress = ret;
+				if (program != null && program.getType() == Elf32Program.PT_LOAD) {
+					if (program.getFileSize() != 0) {
+						ByteBuffer data = program.getData();
+						int ret = load(program.getVirtualAddress(), data);
+						if (lastAddress < ret || lastAddress == 0)
+							lastAddress = ret;
+					}
+					if (program.getMemorySize() > program.getFileSize()) {
+						zero(program.getVirtualAddress() + program.getFileSize(),
+						     program.getMemorySize() - program.getFileSize());
+					}
 				}
 			}
 			labelResolver.loadElf32SymbolTable(elf);
@@ -303,16 +347,75 @@ public final class MipsSystem {
 	}
 
 	public int loadElf32(String fileName) {
-		ByteBuffer bb = FileUtils.readFile(fileName);
+		long start = System.nanoTime();
+		ByteBuffer bb = FileUtils.mapFile(fileName);
 		if (bb == null) return 0;
-		return loadElf32(bb);
+		int ret = loadElf32(bb);
+		loadTime += System.nanoTime() - start;
+		return ret;
+	}
+
+	public int getCpuFrequency() {
+		return cpuFrequency;
+	}
+
+	public void setCpuFrequency(int cpuFrequency) {
+		this.cpuFrequency = cpuFrequency;
 	}
 
 	public void step(int num) {
 		cpu.step(num);
-		while (tty.available()) {
-			uart.receiveByte(tty.read());
+		pollDevices();
+	}
+
+	public void scheduleAfter(Event event, long cycles) {
+		cpu.getEventScheduler().schedule(event, cpu.getCycles() + cycles);
+	}
+
+	private void pollDevices() {
+		if (tty.available()) {
+			while (tty.available()) {
+				uart.receiveByte(tty.read());
+			}
+			if (!uartTimeoutEvent.isScheduled())
+				scheduleAfter(uartTimeoutEvent, UART_TIMEOUT_CYCLES);
+		}
+	}
+
+	public boolean isIdle() {
+		return cpu.isHalted();
+	}
+
+	// While the cpu waits for an interrupt, sleeps until the next event
+	// is due at the nominal frequency, some input arrives or maxMillis
+	// elapse. Then the virtual time is advanced by the time slept.
+	// Returns true if the cpu is still idle.
+	public boolean idle(long maxMillis) {
+		if (!cpu.isHalted()) return false;
+
+		final long cyclesToEvent = Math.max(0, cpu.getCyclesToNextEvent());
+		final long start = System.nanoTime();
+		final long timeout = (cyclesToEvent >= Long.MAX_VALUE / 1000000000L) ? maxMillis * 1000000L :
+		                      Math.min(maxMillis * 1000000L, cyclesToEvent * 1000000000L / cpuFrequency);
+		long elapsed = 0;
+		while (elapsed < timeout && !tty.available()) {
+			long millis = Math.min(IDLE_POLL_INTERVAL, (timeout - elapsed + 999999) / 1000000);
+			try {
+				Thread.sleep(millis);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			elapsed = System.nanoTime() - start;
+		}
+
+		long cycles = Math.min(cyclesToEvent, elapsed * cpuFrequency / 1000000000L);
+		while (cycles > 0 && cpu.isHalted()) {
+			int num = (int) Math.min(cycles, Integer.MAX_VALUE);
+			cpu.step(num);
+			cycles -= num;
 		}
-		uart.expireReceiveBufferData();
+		pollDevices();
+		return cpu.isHalted();
 	}
 }
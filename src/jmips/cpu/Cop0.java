@@ -1,8 +1,5 @@
 package jmips.cpu;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import jmips.utils.ReadableSeedRandom;
 import static jmips.cpu.Mips.*;
 
@@ -49,25 +46,56 @@ public class Cop0 {
 
 	// Coprocessor0 Instance fields
 	private int[] regs = new int[32];
+	private final int[] changeMasks;
+	private final int config1;
 
 	private boolean kernelMode;
-	private final TlbEntry[] tlbEntries = new TlbEntry[NUM_TLB_ENTRIES];
-	private final Map<Integer, TlbEntry> tlbCache = new HashMap<Integer, TlbEntry>(129);
+	private final TlbEntry[] tlbEntries;
+	private final TlbIndex tlbIndex;
+
+	// Caches of the translations done through the TLB
+	private final TranslationCache readCache = new TranslationCache();
+	private final TranslationCache writeCache = new TranslationCache();
+	private final TranslationCache fetchCache = new TranslationCache();
 
 	private final ReadableSeedRandom random = new ReadableSeedRandom(0);
 
 	public Cop0() {
-		for(int i = 0; i < NUM_TLB_ENTRIES; i++) {
+		this(NUM_TLB_ENTRIES);
+	}
+
+	public Cop0(int numTlbEntries) {
+		if (numTlbEntries < 1 || numTlbEntries > MAX_TLB_ENTRIES)
+			throw new IllegalArgumentException("Invalid number of TLB entries: " + numTlbEntries);
+
+		tlbEntries = new TlbEntry[numTlbEntries];
+		for(int i = 0; i < numTlbEntries; i++) {
 			tlbEntries[i] = new TlbEntry();
 		}
+		tlbIndex = new TlbIndex(tlbEntries);
 		resetTlb();
 
+		int indexMask = 0;
+		while (indexMask < numTlbEntries - 1)
+			indexMask = (indexMask << 1) | 1;
+		changeMasks = CHANGE_MASKS.clone();
+		changeMasks[COP0_INDEX] = indexMask;
+		changeMasks[COP0_WIRED] = indexMask;
+		config1 = (DEFAULT_CONFIG1 & ~CONFIG1_MMU_SIZE_MASK) |
+		          ((numTlbEntries - 1) << CONFIG1_MMU_SIZE_SHIFT);
+
 		regs[COP0_PRID] = DEFAULT_PRID;
 		regs[COP0_CONFIG] = DEFAULT_CONFIG;
 	}
 
+	public int getNumTlbEntries() {
+		return tlbEntries.length;
+	}
+
 	private int readRegisterRandom() {
-		return regs[COP0_WIRED] + random.nextRandomInt(NUM_TLB_ENTRIES - regs[COP0_WIRED]);
+		int wired = regs[COP0_WIRED];
+		if (wired >= tlbEntries.length) return tlbEntries.length - 1;
+		return wired + random.nextRandomInt(tlbEntries.length - wired);
 	}
 
 	public void setRandomSeed(long seed) {
@@ -93,7 +121,7 @@ public class Cop0 {
 	}
 
 	public void setCop0Reg(Cpu cpu, int reg, int sel, int value) {
-		int mask = CHANGE_MASKS[reg];
+		int mask = changeMasks[reg];
 		if (mask != 0 && sel == 0) {
 			regs[reg] = Helper.changeMaskedValue(regs[reg], value, mask);
 			switch(reg) {
@@ -126,7 +154,7 @@ public class Cop0 {
 			break;
 		case COP0_CONFIG:
 			if (sel == 0) retval = regs[reg];
-			else retval = DEFAULT_CONFIG1;
+			else retval = config1;
 			break;
 		default:
 			retval = regs[reg];
@@ -313,11 +341,29 @@ public class Cop0 {
 	}
 
 	public void resetTlb() {
-		for(int i = 0; i < NUM_TLB_ENTRIES; i++)
+		for(int i = 0; i < tlbEntries.length; i++)
 			tlbEntries[i].setInitialized(false);
-		tlbCache.clear();
+		tlbIndex.clear();
+		invalidateTranslationCaches();
 	}
 
+	private void invalidateTranslationCaches() {
+		readCache.invalidateAll();
+		writeCache.invalidateAll();
+		fetchCache.invalidateAll();
+	}
+
+	private void invalidateTranslationCaches(TlbEntry tlbEntry) {
+		int address = tlbEntry.getVPN2();
+		int size = ~tlbEntry.getPageMask() + 1;
+		readCache.invalidateRange(address, size);
+		writeCache.invalidateRange(address, size);
+		fetchCache.invalidateRange(address, size);
+	}
+
+	// The privilege checks are done before looking up the translation
+	// caches, and the cached entries are tagged with the ASID, hence
+	// it is not necessary to flush the caches on mode or ASID changes
 	public int translate(int address, boolean write) {
 		if (kernelMode) {
 			if ((address & 0xC0000000) == 0x80000000) { // kseg0 or kseg1 
@@ -331,15 +377,40 @@ public class Cop0 {
 		}
 
 		final int ASID = regs[COP0_ENTRYHI] & ENTRYHI_ASID_MASK;
+		final TranslationCache cache = write ? writeCache : readCache;
+		int physicalAddress = cache.lookup(address, ASID);
+		if (physicalAddress >= 0) return physicalAddress;
+		return translateTlb(address, ASID, write, cache);
+	}
 
-		TlbEntry tlbEntry = tlbCache.get(ASID | (address & 0xFFFFE000));
-		if (tlbEntry != null) {
-			TlbEntryPage tlbEntryPage = tlbEntry.match(address, ASID);
-			if (tlbEntryPage != null) {
-				return tlbEntry.tlbPageTranslate(tlbEntryPage, address, write);
+	public int translateFetch(int address) {
+		if (kernelMode) {
+			if ((address & 0xC0000000) == 0x80000000) { // kseg0 or kseg1 
+				return address & 0x1FFFFFFF;
+			}
+		} else { // User Mode
+			if ((address & 0x80000000) != 0) {
+				return -MEMORY_ERROR_ADDRESS_ERROR_LOAD;
 			}
 		}
 
+		final int ASID = regs[COP0_ENTRYHI] & ENTRYHI_ASID_MASK;
+		int physicalAddress = fetchCache.lookup(address, ASID);
+		if (physicalAddress >= 0) return physicalAddress;
+		return translateTlb(address, ASID, false, fetchCache);
+	}
+
+	private int translateTlb(int address, int ASID, boolean write, TranslationCache cache) {
+		int index = tlbIndex.lookup(address, ASID);
+		if (index >= 0) {
+			TlbEntry tlbEntry = tlbEntries[index];
+			TlbEntryPage tlbEntryPage = tlbEntry.match(address, ASID);
+			int physicalAddress = tlbEntry.tlbPageTranslate(tlbEntryPage, address, write);
+			if (physicalAddress >= 0)
+				cache.fill(address, ASID, physicalAddress);
+			return physicalAddress;
+		}
+
 		if ((regs[Mips.COP0_STATUS] & STATUS_EXL) != 0) {
 			return write ? -MEMORY_ERROR_TLB_INVALID_STORE :
 			               -MEMORY_ERROR_TLB_INVALID_LOAD;
@@ -353,20 +424,14 @@ public class Cop0 {
 	public void tlbProbe() {
 		int ASID = regs[COP0_ENTRYHI] & ENTRYHI_ASID_MASK;
 		int VPN2 = regs[COP0_ENTRYHI] & ENTRYHI_VPN2_MASK;
-		regs[COP0_INDEX] = INDEX_PROBE;
-		for(int idx = 0; idx < NUM_TLB_ENTRIES; idx++) {
-			TlbEntry tlbEntry = tlbEntries[idx];
-			TlbEntryPage tlbEntryPage = tlbEntry.match(VPN2, ASID);;
-
-			if (tlbEntryPage != null) {
-				regs[COP0_INDEX] = idx;
-				return;
-			}
-		}
+		int index = tlbIndex.lookup(VPN2, ASID);
+		regs[COP0_INDEX] = (index >= 0) ? index : INDEX_PROBE;
 	}
 
 	public void tlbRead() {
-		TlbEntry entry = tlbEntries[regs[COP0_INDEX] & INDEX_MASK];
+		int index = regs[COP0_INDEX] & changeMasks[COP0_INDEX];
+		if (index >= tlbEntries.length) return;
+		TlbEntry entry = tlbEntries[index];
 		regs[COP0_PAGEMASK] = (~entry.getPageMask()) & ENTRYHI_VPN2_MASK;
 		regs[COP0_ENTRYHI] = entry.getVPN2() | entry.getASID();
 		regs[COP0_ENTRYLO0] = entry.getPage0().convertPageToEntryLo(entry.isGlobal());
@@ -381,23 +446,18 @@ public class Cop0 {
 		boolean global = ((regs[COP0_ENTRYLO0] & ENTRYLO_GLOBAL) != 0) &&
 		                 ((regs[COP0_ENTRYLO1] & ENTRYLO_GLOBAL) != 0);
 
+		if (index >= tlbEntries.length) return;
+
 		// Checks for multiple entries
-		for (int idx = 0; idx < NUM_TLB_ENTRIES; idx++) {
-			tlbEntry = tlbEntries[idx];
-			if (!tlbEntry.isInitialized() || idx == index) continue;
-			if ((tlbEntry.getVPN2() & mask) == VPN2) {
-				if (global || tlbEntry.isGlobal() || tlbEntry.getASID() == ASID) {
-					exceptionMachineCheck(cpu);
-					return;
-				}
-			}
+		if (tlbIndex.findConflict(VPN2, mask, ASID, global, index) >= 0) {
+			exceptionMachineCheck(cpu);
+			return;
 		}
 
 		tlbEntry = tlbEntries[index];
 		if (tlbEntry.isInitialized()) {
-			if (tlbCache.remove(tlbEntry.getVPN2() | tlbEntry.getASID()) != tlbEntry) {
-				System.exit(1);
-			}
+			tlbIndex.remove(index);
+			invalidateTranslationCaches(tlbEntry);
 		}
 		tlbEntry.setInitialized(true);
 		tlbEntry.setPageMask(mask);
@@ -407,7 +467,7 @@ public class Cop0 {
 		tlbEntry.setSelectionBit(mask ^ (mask >> 1));
 		tlbEntry.getPage0().configurePageFromEntryLo(regs[COP0_ENTRYLO0]);
 		tlbEntry.getPage1().configurePageFromEntryLo(regs[COP0_ENTRYLO1]);
-		tlbCache.put(VPN2 | ASID, tlbEntry);
+		tlbIndex.add(index);
 	}
 
 	public void tlbWriteRandom(Cpu cpu) {
@@ -415,6 +475,6 @@ public class Cop0 {
 	}
 
 	public void tlbWriteIndex(Cpu cpu) {
-		tlbWrite(cpu, regs[COP0_INDEX] & INDEX_MASK);
+		tlbWrite(cpu, regs[COP0_INDEX] & changeMasks[COP0_INDEX]);
 	}
 }
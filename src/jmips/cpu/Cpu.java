@@ -1,6 +1,9 @@
 package jmips.cpu;
 
 import static jmips.cpu.Mips.*;
+
+import java.nio.ByteBuffer;
+
 import jmips.cpu.disasm.LabelResolver;
 
 /**
@@ -13,27 +16,70 @@ public final class Cpu {
 	private int hi, lo;
 
 	private int pc, exceptionPc, nextPc;
-	private long counter, compare;
+	private long counter, counterOffset, compare;
+	private long sliceEnd;
 
 	private boolean halted;
+	private boolean exitRequested;
 	private int memoryError;
 
 	private final Ram ram;
+	private final boolean directMemory; // If the words of the RAM are in an array
 	private final Device ioController;
 	private final Cop0 cop0;
+	private final InstructionCache icache;
+	private ExecutionEngine engine;
+	private int[] decodedPage;
+
+	// One bit per page of the RAM, set on the pages which might hold decoded
+	// or translated instructions. Stores to the other pages don't have
+	// any code to invalidate.
+	private final int[] codePages;
+
+	// The virtual and physical addresses of the page in decodedPage
+	private int fetchPageTag = -1;
+	private int fetchPagePhysical;
 
 	private boolean bigEndian = true;
 	private boolean loadLinkedStatus = false;
 
 	private LabelResolver labelResolver;
 
+	private static final long COUNTER_MASK = (1L << 33) - 1; // The counter runs at twice the rate of Count
+	private static final int ICACHE_LINE_SIZE = 16;
+
+	private final EventScheduler scheduler = new EventScheduler();
+	private final Event timerEvent = new Event() {
+		@Override
+		public void fire() {
+			raiseIrq(TIMER_IRQ, true);
+			scheduleTimerEvent();
+		}
+	};
+
 	public Cpu(int ramSize, Device io) {
-		this.ram = new Ram(ramSize);
-		this.cop0 = new Cop0();
+		this(ramSize, NUM_TLB_ENTRIES, io);
+	}
+
+	public Cpu(int ramSize, int numTlbEntries, Device io) {
+		this(new Ram(ramSize), numTlbEntries, io);
+	}
+
+	public Cpu(Ram ram, int numTlbEntries, Device io) {
+		this.ram = ram;
+		this.directMemory = ram.getMemory() != null;
+		this.cop0 = new Cop0(numTlbEntries);
+		this.icache = new InstructionCache(ram);
+		this.codePages = new int[(((ram.getRamSize() + InstructionCache.PAGE_MASK) >>> InstructionCache.PAGE_SHIFT) + 31) >>> 5];
 		this.ioController = io;
+		scheduleTimerEvent();
 		hardReset();
 	}
 
+	public LabelResolver getLabelResolver() {
+		return labelResolver;
+	}
+
 	public void setLabelResolver(LabelResolver labelResolver) {
 		this.labelResolver = labelResolver;
 	}
@@ -79,6 +125,19 @@ public final class Cpu {
 		return cop0;
 	}
 
+	public InstructionCache getInstructionCache() {
+		return icache;
+	}
+
+	public ExecutionEngine getExecutionEngine() {
+		return engine;
+	}
+
+	// A null engine executes everything in the interpreter
+	public void setExecutionEngine(ExecutionEngine engine) {
+		this.engine = engine;
+	}
+
 	public boolean isHalted() {
 		return halted;
 	}
@@ -88,6 +147,31 @@ public final class Cpu {
 		this.nextPc = pc + 4;
 		this.exceptionPc = pc;
 		this.halted = false;
+		this.exitRequested = true;
+		dropFetchPage();
+	}
+
+	// Sets up the state for executing the instruction at the given address
+	// outside of step(), as done by the execution engines before the
+	// operations which may raise exceptions. The nextAddress is the address
+	// of the following instruction (the branch target for delay slots).
+	public void enterInstruction(int address, int nextAddress) {
+		this.exceptionPc = address;
+		this.pc = nextAddress;
+		this.nextPc = nextAddress + 4;
+		this.exitRequested = false;
+	}
+
+	// Whether the instruction set up by enterInstruction changed the pc
+	// (raised an exception) or asked to look at the events again
+	public boolean isExitRequested() {
+		return exitRequested;
+	}
+
+	// Called by the execution engines when they start executing code which
+	// checks isExitRequested() without calling enterInstruction first
+	public void clearExitRequest() {
+		this.exitRequested = false;
 	}
 
 	public int getPc() {
@@ -95,15 +179,48 @@ public final class Cpu {
 	}
 
 	public int getCounter() {
-		return (int) (counter >> 1);
+		return (int) ((counter + counterOffset) >> 1);
 	}
 
 	public void setCounter(int counter) {
-		this.counter = ((long) counter) << 1;
+		this.counterOffset = (((long) counter) << 1) - this.counter;
+		scheduleTimerEvent();
 	}
 
 	public void setCompare(int compare) {
 		this.compare = ((long) compare) << 1;
+		scheduleTimerEvent();
+	}
+
+	// The number of cycles executed so far, used as the time base of the events
+	public long getCycles() {
+		return counter;
+	}
+
+	public EventScheduler getEventScheduler() {
+		return scheduler;
+	}
+
+	public long getCyclesToNextEvent() {
+		return scheduler.getNextDeadline() - counter;
+	}
+
+	public long getCyclesToCompare() {
+		return timerEvent.getDeadline() - counter;
+	}
+
+	private void scheduleTimerEvent() {
+		long distance = (compare - (counter + counterOffset)) & COUNTER_MASK;
+		if (distance == 0) distance = COUNTER_MASK + 1;
+		scheduler.schedule(timerEvent, counter + distance);
+		endSlice();
+	}
+
+	// Makes step() stop executing instructions and look at the pending
+	// events and interrupts again
+	private void endSlice() {
+		sliceEnd = counter;
+		exitRequested = true;
 	}
 
 	public boolean isBranchDelaySlot() {
@@ -121,7 +238,11 @@ public final class Cpu {
 	}
 
 	public void setBigEndian(boolean bigEndian) {
+		if (this.bigEndian != bigEndian && engine != null)
+			engine.invalidateAll();
 		this.bigEndian = bigEndian;
+		icache.setBigEndian(bigEndian);
+		dropFetchPage();
 	}
 
 	public boolean isLoadLinkedStatus() {
@@ -138,6 +259,7 @@ public final class Cpu {
 
 	public void setCop0Reg(int reg, int sel, int value) {
 		cop0.setCop0Reg(this, reg, sel, value);
+		dropFetchPage();
 	}
 
 	public void raiseIrq(int irqno, boolean raise) {
@@ -151,6 +273,7 @@ public final class Cpu {
 			ret = ram.read8(physicalAddress);
 		} else {
 			ret = ioController.read8(physicalAddress);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
@@ -160,8 +283,11 @@ public final class Cpu {
 	private void _store8phys(final int physicalAddress, byte value) {
 		if (physicalAddress < ram.getRamSize()) {
 			ram.write8(physicalAddress, value);
+			if (isCodePage(physicalAddress))
+				invalidateCode(physicalAddress, 1);
 		} else {
 			ioController.write8(physicalAddress, value);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
@@ -173,6 +299,7 @@ public final class Cpu {
 			ret = ram.read16(physicalAddress);
 		} else {
 			ret = ioController.read16(physicalAddress);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
@@ -184,8 +311,11 @@ public final class Cpu {
 		if (!bigEndian) value = Helper.byteSwap(value);
 		if (physicalAddress < ram.getRamSize()) {
 			ram.write16(physicalAddress, value);
+			if (isCodePage(physicalAddress))
+				invalidateCode(physicalAddress, 2);
 		} else {
 			ioController.write16(physicalAddress, value);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
@@ -197,6 +327,7 @@ public final class Cpu {
 			ret = ram.read32(physicalAddress);
 		} else {
 			ret = ioController.read32(physicalAddress);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
@@ -208,13 +339,35 @@ public final class Cpu {
 		if (!bigEndian) value = Helper.byteSwap(value);
 		if (physicalAddress < ram.getRamSize()) {
 			ram.write32(physicalAddress, value);
+			if (isCodePage(physicalAddress))
+				invalidateCode(physicalAddress, 4);
 		} else {
 			ioController.write32(physicalAddress, value);
+			endSlice();
 			if (ioController.ioError())
 				memoryError = MEMORY_ERROR_BUS_ERROR_DATA; 
 		}
 	}
 
+	// Used by the fast path of the recompiled loads and stores, which access
+	// the words of the RAM directly. Returns the physical address, or -1 if
+	// the access must go through the usual methods (the I/O, the exceptions,
+	// and the stores to the pages holding code).
+	public int translateLoad(final int address) {
+		int physicalAddress = cop0.translate(address, false);
+		if (physicalAddress < 0 || physicalAddress >= ram.getRamSize() || !directMemory)
+			return -1;
+		return physicalAddress;
+	}
+
+	public int translateStore(final int address) {
+		int physicalAddress = cop0.translate(address, true);
+		if (physicalAddress < 0 || physicalAddress >= ram.getRamSize() || !directMemory
+				|| isCodePage(physicalAddress))
+			return -1;
+		return physicalAddress;
+	}
+
 	public byte load8phys(final int physicalAddress) {
 		memoryError = MEMORY_ERROR_NOERROR;
 		return _load8phys(physicalAddress);
@@ -351,7 +504,9 @@ public final class Cpu {
 		}
 	}
 
-	private void raiseMemoryException(final int address) {
+	// Raises the exception for the error of the last memory access,
+	// for the engines which don't use the raising methods
+	public void raiseMemoryException(final int address) {
 		switch(memoryError) {
 		case MEMORY_ERROR_ADDRESS_ERROR_LOAD:
 			cop0.exceptionAddressError(this, address, true);
@@ -396,6 +551,116 @@ public final class Cpu {
 			raiseMemoryException(address);
 	}
 
+	// Copies length bytes starting at the virtual address into the array,
+	// translating the address once per page. Returns false if some of the
+	// bytes can't be read (see getLastMemoryError).
+	public boolean loadBytes(int address, byte[] dst, int offset, int length) {
+		memoryError = MEMORY_ERROR_NOERROR;
+		while (length > 0) {
+			int chunk = Math.min(length, InstructionCache.PAGE_SIZE - (address & InstructionCache.PAGE_MASK));
+			int physicalAddress = cop0.translate(address, false);
+			if (physicalAddress < 0) {
+				memoryError = -physicalAddress;
+				return false;
+			}
+
+			if (physicalAddress <= ram.getRamSize() - chunk) {
+				ram.readBytes(physicalAddress, dst, offset, chunk);
+			} else {
+				for(int i = 0; i < chunk; i++) {
+					dst[offset + i] = _load8phys(physicalAddress + i);
+					if (memoryError != MEMORY_ERROR_NOERROR) return false;
+				}
+			}
+			address += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+		return true;
+	}
+
+	// Copies length bytes from the array to the virtual address, translating
+	// the address once per page. Returns false if some of the bytes can't
+	// be written (see getLastMemoryError).
+	public boolean storeBytes(int address, byte[] src, int offset, int length) {
+		memoryError = MEMORY_ERROR_NOERROR;
+		while (length > 0) {
+			int chunk = Math.min(length, InstructionCache.PAGE_SIZE - (address & InstructionCache.PAGE_MASK));
+			int physicalAddress = cop0.translate(address, true);
+			if (physicalAddress < 0) {
+				memoryError = -physicalAddress;
+				return false;
+			}
+
+			if (physicalAddress <= ram.getRamSize() - chunk) {
+				ram.writeBytes(physicalAddress, src, offset, chunk);
+				invalidateCode(physicalAddress, chunk);
+			} else {
+				for(int i = 0; i < chunk; i++) {
+					_store8phys(physicalAddress + i, src[offset + i]);
+					if (memoryError != MEMORY_ERROR_NOERROR) return false;
+				}
+			}
+			address += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+		return true;
+	}
+
+	// Copies the remaining bytes of the buffer straight into the RAM.
+	// Returns false if the range is not inside the RAM.
+	public boolean storeBytesPhys(int physicalAddress, ByteBuffer src) {
+		int length = src.remaining();
+		if (physicalAddress < 0 || physicalAddress > ram.getRamSize() - length)
+			return false;
+		ram.writeBytes(physicalAddress, src);
+		invalidateCode(physicalAddress, length);
+		return true;
+	}
+
+	// Clears a range of the RAM. Returns false if the range is not inside the RAM.
+	public boolean zeroBytesPhys(int physicalAddress, int length) {
+		if (physicalAddress < 0 || physicalAddress > ram.getRamSize() - length)
+			return false;
+		ram.zeroBytes(physicalAddress, length);
+		invalidateCode(physicalAddress, length);
+		return true;
+	}
+
+	// Fills the remaining bytes of the buffer from the virtual address
+	public boolean loadBytes(int address, ByteBuffer dst) {
+		int length = dst.remaining();
+		if (dst.hasArray()) {
+			if (!loadBytes(address, dst.array(), dst.arrayOffset() + dst.position(), length))
+				return false;
+			dst.position(dst.position() + length);
+		} else {
+			byte[] data = new byte[length];
+			if (!loadBytes(address, data, 0, length))
+				return false;
+			dst.put(data);
+		}
+		return true;
+	}
+
+	// Copies the remaining bytes of the buffer to the virtual address
+	public boolean storeBytes(int address, ByteBuffer src) {
+		int length = src.remaining();
+		if (src.hasArray()) {
+			if (!storeBytes(address, src.array(), src.arrayOffset() + src.position(), length))
+				return false;
+			src.position(src.position() + length);
+		} else {
+			byte[] data = new byte[length];
+			src.duplicate().get(data);
+			if (!storeBytes(address, data, 0, length))
+				return false;
+			src.position(src.position() + length);
+		}
+		return true;
+	}
+
 	public short read16(final int address) {
 		short ret = load16(address);
 		if (memoryError != MEMORY_ERROR_NOERROR)
@@ -511,7 +776,19 @@ public final class Cpu {
 	}
 
 	public int fetchOpcode() {
-		int ret = load32(pc);
+		int ret = 0;
+		if ((pc & 3) == 0) {
+			memoryError = MEMORY_ERROR_NOERROR;
+
+			int physicalAddress = cop0.translateFetch(pc);
+			if (physicalAddress >= 0) {
+				ret = _load32phys(physicalAddress);
+			} else {
+				memoryError = -physicalAddress;
+			}
+		} else {
+			memoryError = MEMORY_ERROR_ADDRESS_ERROR_LOAD;
+		}
 		if (memoryError != MEMORY_ERROR_NOERROR) {
 			if (memoryError == MEMORY_ERROR_BUS_ERROR_DATA)
 				memoryError = MEMORY_ERROR_BUS_ERROR_INSTRUCTION;
@@ -520,6 +797,68 @@ public final class Cpu {
 		return ret;
 	}
 
+	// Returns the index of the current instruction inside decodedPage,
+	// or -1 if the instruction can't be fetched from the decoded pages
+	private int fetchDecoded() {
+		// Sequential fetches and short branches stay in the same page
+		if ((pc & ~(InstructionCache.PAGE_MASK & ~3)) == fetchPageTag) {
+			return InstructionCache.ENTRY_SIZE * ((pc & InstructionCache.PAGE_MASK) >> 2);
+		}
+
+		if ((pc & 3) == 0) {
+			int physicalAddress = cop0.translateFetch(pc);
+			if (physicalAddress >= 0 && physicalAddress < ram.getRamSize()) {
+				decodedPage = icache.getPage(physicalAddress);
+				markCodePage(physicalAddress);
+				fetchPageTag = pc & ~InstructionCache.PAGE_MASK;
+				fetchPagePhysical = physicalAddress & ~InstructionCache.PAGE_MASK;
+				return InstructionCache.ENTRY_SIZE * ((physicalAddress & InstructionCache.PAGE_MASK) >> 2);
+			}
+		}
+		return -1;
+	}
+
+	// Must be called whenever the translation of the pc may have changed
+	private void dropFetchPage() {
+		fetchPageTag = -1;
+	}
+
+	// Must be called on the pages from which the execution engine translates code
+	public void markCodePage(int physicalAddress) {
+		codePages[physicalAddress >>> (InstructionCache.PAGE_SHIFT + 5)] |= 1 << (physicalAddress >>> InstructionCache.PAGE_SHIFT);
+	}
+
+	private boolean isCodePage(int physicalAddress) {
+		return (codePages[physicalAddress >>> (InstructionCache.PAGE_SHIFT + 5)] & (1 << (physicalAddress >>> InstructionCache.PAGE_SHIFT))) != 0;
+	}
+
+	// Drops the decoded and translated instructions in the range of the RAM
+	private void invalidateCode(int physicalAddress, int length) {
+		int end = physicalAddress + length;
+		while (physicalAddress < end) {
+			int pageEnd = (physicalAddress & ~InstructionCache.PAGE_MASK) + InstructionCache.PAGE_SIZE;
+			int chunk = Math.min(end, pageEnd) - physicalAddress;
+			if (isCodePage(physicalAddress))
+				invalidateCodeInPage(physicalAddress, chunk);
+			physicalAddress = pageEnd;
+		}
+	}
+
+	private void invalidateCodeInPage(int physicalAddress, int length) {
+		icache.invalidate(physicalAddress);
+		if ((physicalAddress & ~InstructionCache.PAGE_MASK) == fetchPagePhysical)
+			dropFetchPage();
+
+		if (engine != null) {
+			// The translated code being executed might have been modified
+			if (engine.invalidate(physicalAddress, length))
+				endSlice();
+			if (engine.containsCode(physicalAddress))
+				return;
+		}
+		codePages[physicalAddress >>> (InstructionCache.PAGE_SHIFT + 5)] &= ~(1 << (physicalAddress >>> InstructionCache.PAGE_SHIFT));
+	}
+
 	public int getLastMemoryError() {
 		return memoryError;
 	}
@@ -530,24 +869,43 @@ public final class Cpu {
 
 	public void step(int num) {
 		cop0.checkInterrupts(this);
-		while (num > 0) {
-			while(num > 0 && !halted) {
-				num--;
+		final long end = counter + num;
+		while (counter < end) {
+			sliceEnd = Math.min(end, scheduler.getNextDeadline());
+			if (halted && sliceEnd > counter) {
+				counter = sliceEnd;
+			}
+			while (counter < sliceEnd) {
+				// The engine never starts in the middle of a delay slot
+				if (engine != null && nextPc == pc + 4) {
+					int executed = engine.execute(this, (int) Math.min(sliceEnd - counter, Integer.MAX_VALUE));
+					if (executed > 0) {
+						counter += executed;
+						continue;
+					}
+				}
 				counter++;
 
-				checkTimerInterrupt();
-
-				int opcode = fetchOpcode();
-				if (memoryError != MEMORY_ERROR_NOERROR) {
-					opcode = fetchOpcode();
+				int index = fetchDecoded();
+				if (index >= 0) {
+					pc = nextPc;
+					nextPc += 4;
+					stepDecoded(decodedPage, index);
+				} else {
+					// Slow path: faulting fetches and fetches outside the RAM
+					int opcode = fetchOpcode();
+					if (memoryError != MEMORY_ERROR_NOERROR) {
+						opcode = fetchOpcode();
+					}
+
+					pc = nextPc;
+					nextPc += 4;
+					stepInstruction(opcode);
 				}
-
-				pc = nextPc;
-				nextPc += 4;
-				stepInstruction(opcode);
 				exceptionPc = pc;
 			}
-			num = checkTimerInterrupt(num);
+			scheduler.runEvents(counter);
+			cop0.checkInterrupts(this);
 		}
 	}
 
@@ -636,6 +994,100 @@ public final class Cpu {
 		}
 	}
 
+	private void stepDecoded(int[] page, int index) {
+		final int fields = page[index];
+		final int operand = page[index + 1];
+		final int rs = (fields >>> 8) & 0x1F;
+		final int rt = (fields >>> 16) & 0x1F;
+		final int rd = fields >>> 24;
+		int val;
+
+		switch(fields & 0xFF) {
+		case InstructionCache.H_GENERIC: stepInstruction(operand); break;
+		case InstructionCache.H_NOP: break;
+
+		case InstructionCache.H_ADDIU: setGpr(rt, gpr[rs] + operand); break;
+		case InstructionCache.H_ADDU:  setGpr(rd, gpr[rs] + gpr[rt]); break;
+		case InstructionCache.H_SUBU:  setGpr(rd, gpr[rs] - gpr[rt]); break;
+		case InstructionCache.H_AND:   setGpr(rd, gpr[rs] & gpr[rt]); break;
+		case InstructionCache.H_ANDI:  setGpr(rt, gpr[rs] & operand); break;
+		case InstructionCache.H_OR:    setGpr(rd, gpr[rs] | gpr[rt]); break;
+		case InstructionCache.H_ORI:   setGpr(rt, gpr[rs] | operand); break;
+		case InstructionCache.H_XOR:   setGpr(rd, gpr[rs] ^ gpr[rt]); break;
+		case InstructionCache.H_XORI:  setGpr(rt, gpr[rs] ^ operand); break;
+		case InstructionCache.H_NOR:   setGpr(rd, ~(gpr[rs] | gpr[rt])); break;
+		case InstructionCache.H_LUI:   setGpr(rt, operand); break;
+		case InstructionCache.H_SLL:   setGpr(rd, gpr[rt] << operand); break;
+		case InstructionCache.H_SRL:   setGpr(rd, gpr[rt] >>> operand); break;
+		case InstructionCache.H_SRA:   setGpr(rd, gpr[rt] >> operand); break;
+		case InstructionCache.H_SLLV:  setGpr(rd, gpr[rt] << gpr[rs]); break;
+		case InstructionCache.H_SRLV:  setGpr(rd, gpr[rt] >>> gpr[rs]); break;
+		case InstructionCache.H_SRAV:  setGpr(rd, gpr[rt] >> gpr[rs]); break;
+		case InstructionCache.H_SLT:   setGpr(rd, (gpr[rs] < gpr[rt]) ? 1 : 0); break;
+		case InstructionCache.H_SLTU:  setGpr(rd, (Helper.compareUnsigned(gpr[rs], gpr[rt]) < 0) ? 1 : 0); break;
+		case InstructionCache.H_SLTI:  setGpr(rt, (gpr[rs] < operand) ? 1 : 0); break;
+		case InstructionCache.H_SLTIU: setGpr(rt, (Helper.compareUnsigned(gpr[rs], operand) < 0) ? 1 : 0); break;
+		case InstructionCache.H_MOVZ:  if (gpr[rt] == 0) setGpr(rd, gpr[rs]); break;
+		case InstructionCache.H_MOVN:  if (gpr[rt] != 0) setGpr(rd, gpr[rs]); break;
+		case InstructionCache.H_MFHI:  setGpr(rd, hi); break;
+		case InstructionCache.H_MFLO:  setGpr(rd, lo); break;
+		case InstructionCache.H_MUL:   setGpr(rd, gpr[rs] * gpr[rt]); break;
+
+		case InstructionCache.H_BEQ:  if (gpr[rs] == gpr[rt]) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BNE:  if (gpr[rs] != gpr[rt]) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BLEZ: if (gpr[rs] <= 0) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BGTZ: if (gpr[rs] > 0) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BLTZ: if (gpr[rs] < 0) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BGEZ: if (gpr[rs] >= 0) jump(exceptionPc + operand); break;
+		case InstructionCache.H_BEQL:
+			if (gpr[rs] == gpr[rt]) jump(exceptionPc + operand);
+			else skipDelaySlot();
+			break;
+		case InstructionCache.H_BNEL:
+			if (gpr[rs] != gpr[rt]) jump(exceptionPc + operand);
+			else skipDelaySlot();
+			break;
+		case InstructionCache.H_J:
+			jump((exceptionPc & 0xF0000000) | operand);
+			break;
+		case InstructionCache.H_JAL:
+			link();
+			jump((exceptionPc & 0xF0000000) | operand);
+			break;
+		case InstructionCache.H_JR:
+			jump(gpr[rs]);
+			break;
+		case InstructionCache.H_JALR:
+			link(rd);
+			jump(gpr[rs]);
+			break;
+
+		case InstructionCache.H_LW:
+			val = read32(gpr[rs] + operand);
+			if (memoryError == MEMORY_ERROR_NOERROR) setGpr(rt, val);
+			break;
+		case InstructionCache.H_LB:
+			val = read8(gpr[rs] + operand);
+			if (memoryError == MEMORY_ERROR_NOERROR) setGpr(rt, val);
+			break;
+		case InstructionCache.H_LBU:
+			val = read8(gpr[rs] + operand) & 0xFF;
+			if (memoryError == MEMORY_ERROR_NOERROR) setGpr(rt, val);
+			break;
+		case InstructionCache.H_LH:
+			val = read16(gpr[rs] + operand);
+			if (memoryError == MEMORY_ERROR_NOERROR) setGpr(rt, val);
+			break;
+		case InstructionCache.H_LHU:
+			val = read16(gpr[rs] + operand) & 0xFFFF;
+			if (memoryError == MEMORY_ERROR_NOERROR) setGpr(rt, val);
+			break;
+		case InstructionCache.H_SW: write32(gpr[rs] + operand, gpr[rt]); break;
+		case InstructionCache.H_SB: write8(gpr[rs] + operand, (byte) gpr[rt]); break;
+		case InstructionCache.H_SH: write16(gpr[rs] + operand, (short) gpr[rt]); break;
+		}
+	}
+
 	private void stepSpecial(int opcode) {
 		switch(DECODE_FUNCT(opcode)) {
 		case I_SPEC_SLL:     sll(opcode); break;
@@ -936,7 +1388,15 @@ public final class Cpu {
 	}
 
 	public void cache(int opcode) {
-		// No cache emulation is done
+		// No cache emulation is done, but the operations on the
+		// instruction cache invalidate the decoded and translated
+		// instructions of the line
+		if ((DECODE_RT(opcode) & 3) == 0) {
+			int address = gpr[DECODE_RS(opcode)] + DECODE_IMM16(opcode);
+			int physicalAddress = cop0.translate(address, false);
+			if (physicalAddress >= 0 && physicalAddress < ram.getRamSize())
+				invalidateCode(physicalAddress & ~(ICACHE_LINE_SIZE - 1), ICACHE_LINE_SIZE);
+		}
 	}
 
 	public void clo(int opcode) {
@@ -1091,7 +1551,7 @@ public final class Cpu {
 	public void madd(int opcode) {
 		long rs = gpr[DECODE_RS(opcode)];
 		long rt = gpr[DECODE_RT(opcode)];
-		long hilo = (((long) hi) << 32) | ((long) lo);
+		long hilo = (((long) hi) << 32) | (lo & 0xFFFFFFFFL);
 		long result = hilo + rs * rt;
 		lo = (int) result;
 		hi = (int) (result >> 32);
@@ -1100,7 +1560,7 @@ public final class Cpu {
 	public void maddu(int opcode) {
 		long rs = gpr[DECODE_RS(opcode)] & 0xFFFFFFFFL;
 		long rt = gpr[DECODE_RT(opcode)] & 0xFFFFFFFFL;
-		long hilo = (((long) hi) << 32) | ((long) lo);
+		long hilo = (((long) hi) << 32) | (lo & 0xFFFFFFFFL);
 		long result = hilo + rs * rt;
 		lo = (int) result;
 		hi = (int) (result >> 32);
@@ -1140,7 +1600,7 @@ public final class Cpu {
 	public void msub(int opcode) {
 		long rs = gpr[DECODE_RS(opcode)];
 		long rt = gpr[DECODE_RT(opcode)];
-		long hilo = (((long) hi) << 32) | ((long) lo);
+		long hilo = (((long) hi) << 32) | (lo & 0xFFFFFFFFL);
 		long result = hilo - rs * rt;
 		lo = (int) result;
 		hi = (int) (result >> 32);
@@ -1149,7 +1609,7 @@ public final class Cpu {
 	public void msubu(int opcode) {
 		long rs = gpr[DECODE_RS(opcode)] & 0xFFFFFFFFL;
 		long rt = gpr[DECODE_RT(opcode)] & 0xFFFFFFFFL;
-		long hilo = (((long) hi) << 32) | ((long) lo);
+		long hilo = (((long) hi) << 32) | (lo & 0xFFFFFFFFL);
 		long result = hilo - rs * rt;
 		lo = (int) result;
 		hi = (int) (result >> 32);
@@ -1160,6 +1620,7 @@ public final class Cpu {
 		int rd = DECODE_RD(opcode);
 		int sel = DECODE_COP0SEL(opcode);
 		cop0.setCop0Reg(this, rd, sel, gpr[rt]);
+		dropFetchPage();
 	}
 
 	public void mthi(int opcode) {
@@ -1423,14 +1884,17 @@ public final class Cpu {
 
 	public void tlbr(int opcode) {
 		cop0.tlbRead();
+		dropFetchPage();
 	}
 
 	public void tlbwi(int opcode) {
 		cop0.tlbWriteIndex(this);
+		dropFetchPage();
 	}
 
 	public void tlbwr(int opcode) {
 		cop0.tlbWriteRandom(this);
+		dropFetchPage();
 	}
 
 	public void tlt(int opcode) {
@@ -1483,6 +1947,7 @@ public final class Cpu {
 
 	public void wait(int opcode) {
 		halted = true;
+		endSlice();
 	}
 
 	public void xor(int opcode) {
@@ -1557,27 +2022,4 @@ public final class Cpu {
 			return exceptionPc;
 		}
 	}
-
-	public void checkTimerInterrupt() {
-		if ((int) compare  == (int) counter) {
-			raiseIrq(TIMER_IRQ, true);
-			cop0.checkInterrupts(this);
-		}
-	}
-
-	public int checkTimerInterrupt(int num) {
-		if (num <= 0) return 0;
-		long before = counter & 0xFFFFFFFFL;
-		long after = (counter + num) & 0xFFFFFFFFL;
-		long compare = this.compare & 0xFFFFFFFFL;
-		if (before < compare && after >= compare) {
-			counter = compare;
-			raiseIrq(TIMER_IRQ, true);
-			cop0.checkInterrupts(this);
-			return num - ((int) (compare - before));
-		} else {
-			counter += num;
-			return 0;
-		}
-	}
 }
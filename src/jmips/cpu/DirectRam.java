@@ -0,0 +1,141 @@
+package jmips.cpu;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ram kept outside of the Java heap, either in a direct buffer
+ * or in a memory-mapped file. The byte order is the same as in Ram.
+ */
+public final class DirectRam extends Ram {
+	private static final byte[] ZEROS = new byte[4096];
+
+	private final ByteBuffer buffer;
+	private final boolean mapped;
+
+	public DirectRam(int size) {
+		this(ByteBuffer.allocateDirect(size & (~3)));
+	}
+
+	public DirectRam(ByteBuffer buffer) {
+		this(buffer, false);
+	}
+
+	private DirectRam(ByteBuffer buffer, boolean mapped) {
+		super(buffer.capacity(), null);
+		this.buffer = buffer;
+		this.mapped = mapped;
+		buffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	// Maps the file as the contents of the memory, resizing it if needed.
+	// Returns null if the file can't be mapped.
+	public static DirectRam mapFile(String fileName, int size) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "rw");
+			file.setLength(size & (~3));
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size & (~3));
+			return new DirectRam(buffer, true);
+		} catch(IOException ex) {
+			System.err.printf("Can't map file `%s'\n", fileName);
+			ex.printStackTrace();
+			return null;
+		} finally {
+			try {
+				// The mapping stays valid after the file is closed
+				if (file != null) file.close();
+			} catch(IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	// Writes the contents of a memory-mapped file back to the disk
+	public void sync() {
+		if (mapped)
+			((MappedByteBuffer) buffer).force();
+	}
+
+	@Override
+	public void readBytes(int offset, byte[] dst, int dstOffset, int length) {
+		ByteBuffer src = buffer.duplicate();
+		src.position(offset);
+		src.get(dst, dstOffset, length);
+	}
+
+	@Override
+	public void writeBytes(int offset, byte[] src, int srcOffset, int length) {
+		ByteBuffer dst = buffer.duplicate();
+		dst.position(offset);
+		dst.put(src, srcOffset, length);
+	}
+
+	@Override
+	public void readBytes(int offset, ByteBuffer dst) {
+		ByteBuffer src = buffer.duplicate();
+		src.position(offset);
+		src.limit(offset + dst.remaining());
+		dst.put(src);
+	}
+
+	@Override
+	public void writeBytes(int offset, ByteBuffer src) {
+		ByteBuffer dst = buffer.duplicate();
+		dst.position(offset);
+		dst.put(src);
+	}
+
+	@Override
+	public void zeroBytes(int offset, int length) {
+		ByteBuffer dst = buffer.duplicate();
+		dst.position(offset);
+		while (length > 0) {
+			int chunk = Math.min(length, ZEROS.length);
+			dst.put(ZEROS, 0, chunk);
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public int read32(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	@Override
+	public void write32(int offset, int value) {
+		buffer.putInt(offset, value);
+	}
+
+	@Override
+	public short read16(int offset) {
+		return buffer.getShort(offset);
+	}
+
+	@Override
+	public void write16(int offset, short value) {
+		buffer.putShort(offset, value);
+	}
+
+	@Override
+	public byte read8(int offset) {
+		return buffer.get(offset);
+	}
+
+	@Override
+	public void write8(int offset, byte value) {
+		buffer.put(offset, value);
+	}
+}
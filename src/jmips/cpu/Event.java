@@ -0,0 +1,20 @@
+package jmips.cpu;
+
+/**
+ * An event that fires when the virtual cycle count of the cpu
+ * reaches its deadline (see EventScheduler).
+ */
+public abstract class Event {
+	long deadline;
+	int heapIndex = -1;
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public boolean isScheduled() {
+		return heapIndex >= 0;
+	}
+
+	public abstract void fire();
+}
@@ -0,0 +1,103 @@
+package jmips.cpu;
+
+/**
+ * Queue of events ordered by their deadline in virtual cycles,
+ * implemented as a binary heap.
+ */
+public final class EventScheduler {
+	private Event[] heap = new Event[8];
+	private int size;
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// Returns the deadline of the next event, or Long.MAX_VALUE if none
+	public long getNextDeadline() {
+		return (size == 0) ? Long.MAX_VALUE : heap[0].deadline;
+	}
+
+	// Schedules the event, replacing its previous deadline if it was already scheduled
+	public void schedule(Event event, long deadline) {
+		if (event.heapIndex < 0) {
+			if (size == heap.length) {
+				Event[] newHeap = new Event[2 * size];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+			event.deadline = deadline;
+			event.heapIndex = size;
+			heap[size++] = event;
+			siftUp(event.heapIndex);
+		} else {
+			long oldDeadline = event.deadline;
+			event.deadline = deadline;
+			if (deadline < oldDeadline) siftUp(event.heapIndex);
+			else siftDown(event.heapIndex);
+		}
+	}
+
+	public void cancel(Event event) {
+		int index = event.heapIndex;
+		if (index < 0) return;
+		event.heapIndex = -1;
+		Event last = heap[--size];
+		heap[size] = null;
+		if (index < size) {
+			heap[index] = last;
+			last.heapIndex = index;
+			siftUp(index);
+			siftDown(last.heapIndex);
+		}
+	}
+
+	public void clear() {
+		for(int i = 0; i < size; i++) {
+			heap[i].heapIndex = -1;
+			heap[i] = null;
+		}
+		size = 0;
+	}
+
+	// Fires, in order, all the events whose deadline is not after now.
+	// The events are removed from the queue before firing, so they can
+	// schedule themselves again.
+	public void runEvents(long now) {
+		while (size > 0 && heap[0].deadline <= now) {
+			Event event = heap[0];
+			cancel(event);
+			event.fire();
+		}
+	}
+
+	private void siftUp(int index) {
+		Event event = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >> 1;
+			Event p = heap[parent];
+			if (p.deadline <= event.deadline) break;
+			heap[index] = p;
+			p.heapIndex = index;
+			index = parent;
+		}
+		heap[index] = event;
+		event.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		Event event = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) break;
+			if (child + 1 < size && heap[child + 1].deadline < heap[child].deadline)
+				child++;
+			Event c = heap[child];
+			if (event.deadline <= c.deadline) break;
+			heap[index] = c;
+			c.heapIndex = index;
+			index = child;
+		}
+		heap[index] = event;
+		event.heapIndex = index;
+	}
+}
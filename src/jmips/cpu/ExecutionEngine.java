@@ -0,0 +1,23 @@
+package jmips.cpu;
+
+/**
+ * An alternative way of executing the instructions, such as translating
+ * them to bytecode. The interpreter of the cpu executes everything the
+ * engine can't.
+ */
+public interface ExecutionEngine {
+
+	// Executes at most numCycles instructions starting at the pc of the cpu.
+	// Returns the number of instructions executed, or 0 if the engine
+	// can't execute the instruction at the pc.
+	public int execute(Cpu cpu, int numCycles);
+
+	// Called whenever a range of the RAM (inside of a single page) holding
+	// translated code is modified. Returns true if the code currently being
+	// executed by the engine was affected, and must be left at once.
+	public boolean invalidate(int physicalAddress, int length);
+	public void invalidateAll();
+
+	// Returns true if the engine holds translated code from the page
+	public boolean containsCode(int physicalAddress);
+}
@@ -0,0 +1,204 @@
+package jmips.cpu;
+
+import static jmips.cpu.Mips.*;
+
+/**
+ * Cache of predecoded instructions, organized by physical page.
+ * Each page is decoded once into a compact array holding two integers
+ * per instruction: the first contains the handler id and the register
+ * fields, the second contains the pre-extracted immediate (or the raw
+ * opcode for the instructions handled by the generic handler).
+ */
+public final class InstructionCache {
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	public static final int PAGE_MASK = PAGE_SIZE - 1;
+	public static final int ENTRY_SIZE = 2;  // Number of integers per decoded instruction
+
+	// Handler ids
+	static final int H_GENERIC = 0;  // Not predecoded, the second word is the opcode
+	static final int H_NOP     = 1;
+	static final int H_ADDIU   = 2;
+	static final int H_ADDU    = 3;
+	static final int H_SUBU    = 4;
+	static final int H_AND     = 5;
+	static final int H_ANDI    = 6;
+	static final int H_OR      = 7;
+	static final int H_ORI     = 8;
+	static final int H_XOR     = 9;
+	static final int H_XORI    = 10;
+	static final int H_NOR     = 11;
+	static final int H_LUI     = 12;
+	static final int H_SLL     = 13;
+	static final int H_SRL     = 14;
+	static final int H_SRA     = 15;
+	static final int H_SLLV    = 16;
+	static final int H_SRLV    = 17;
+	static final int H_SRAV    = 18;
+	static final int H_SLT     = 19;
+	static final int H_SLTU    = 20;
+	static final int H_SLTI    = 21;
+	static final int H_SLTIU   = 22;
+	static final int H_MOVZ    = 23;
+	static final int H_MOVN    = 24;
+	static final int H_MFHI    = 25;
+	static final int H_MFLO    = 26;
+	static final int H_MUL     = 27;
+	static final int H_BEQ     = 28;
+	static final int H_BNE     = 29;
+	static final int H_BLEZ    = 30;
+	static final int H_BGTZ    = 31;
+	static final int H_BLTZ    = 32;
+	static final int H_BGEZ    = 33;
+	static final int H_BEQL    = 34;
+	static final int H_BNEL    = 35;
+	static final int H_J       = 36;
+	static final int H_JAL     = 37;
+	static final int H_JR      = 38;
+	static final int H_JALR    = 39;
+	static final int H_LW      = 40;
+	static final int H_LB      = 41;
+	static final int H_LBU     = 42;
+	static final int H_LH      = 43;
+	static final int H_LHU     = 44;
+	static final int H_SW      = 45;
+	static final int H_SB      = 46;
+	static final int H_SH      = 47;
+
+	private final Ram ram;
+	private final int[][] pages;
+	private boolean bigEndian = true;
+
+	public InstructionCache(Ram ram) {
+		this.ram = ram;
+		this.pages = new int[(ram.getRamSize() + PAGE_MASK) >>> PAGE_SHIFT][];
+	}
+
+	public int[] getPage(int physicalAddress) {
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		int[] page = pages[pageNumber];
+		if (page == null) {
+			page = decodePage(pageNumber << PAGE_SHIFT);
+			pages[pageNumber] = page;
+		}
+		return page;
+	}
+
+	public boolean isDecoded(int physicalAddress) {
+		return pages[physicalAddress >>> PAGE_SHIFT] != null;
+	}
+
+	public void invalidate(int physicalAddress) {
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		if (pages[pageNumber] != null)
+			pages[pageNumber] = null;
+	}
+
+	public void invalidateAll() {
+		for(int i = 0; i < pages.length; i++)
+			pages[i] = null;
+	}
+
+	public boolean isBigEndian() {
+		return bigEndian;
+	}
+
+	public void setBigEndian(boolean bigEndian) {
+		if (this.bigEndian != bigEndian) {
+			this.bigEndian = bigEndian;
+			invalidateAll();
+		}
+	}
+
+	private int[] decodePage(int pageAddress) {
+		int[] page = new int[ENTRY_SIZE * (PAGE_SIZE >> 2)];
+		int end = Math.min(PAGE_SIZE, ram.getRamSize() - pageAddress);
+		for(int offset = 0; offset < end; offset += 4) {
+			int opcode = ram.read32(pageAddress + offset);
+			if (!bigEndian) opcode = Helper.byteSwap(opcode);
+			decode(opcode, page, ENTRY_SIZE * (offset >> 2));
+		}
+		return page;
+	}
+
+	private static int fields(int handler, int opcode) {
+		return handler | (DECODE_RS(opcode) << 8) | (DECODE_RT(opcode) << 16) | (DECODE_RD(opcode) << 24);
+	}
+
+	static void decode(int opcode, int[] page, int index) {
+		int handler = H_GENERIC;
+		int operand = opcode;
+
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_SLL:
+				if (DECODE_RD(opcode) == 0) {
+					handler = H_NOP;
+				} else {
+					handler = H_SLL; operand = DECODE_SA(opcode);
+				}
+				break;
+			case I_SPEC_SRL:  handler = H_SRL; operand = DECODE_SA(opcode); break;
+			case I_SPEC_SRA:  handler = H_SRA; operand = DECODE_SA(opcode); break;
+			case I_SPEC_SLLV: handler = H_SLLV; break;
+			case I_SPEC_SRLV: handler = H_SRLV; break;
+			case I_SPEC_SRAV: handler = H_SRAV; break;
+			case I_SPEC_JR:   handler = H_JR; break;
+			case I_SPEC_JALR: handler = H_JALR; break;
+			case I_SPEC_MOVZ: handler = H_MOVZ; break;
+			case I_SPEC_MOVN: handler = H_MOVN; break;
+			case I_SPEC_MFHI: handler = H_MFHI; break;
+			case I_SPEC_MFLO: handler = H_MFLO; break;
+			case I_SPEC_ADDU: handler = H_ADDU; break;
+			case I_SPEC_SUBU: handler = H_SUBU; break;
+			case I_SPEC_AND:  handler = H_AND; break;
+			case I_SPEC_OR:   handler = H_OR; break;
+			case I_SPEC_XOR:  handler = H_XOR; break;
+			case I_SPEC_NOR:  handler = H_NOR; break;
+			case I_SPEC_SLT:  handler = H_SLT; break;
+			case I_SPEC_SLTU: handler = H_SLTU; break;
+			}
+			break;
+		case I_REGIMM:
+			switch(DECODE_RT(opcode)) {
+			case I_REGIMM_BLTZ: handler = H_BLTZ; operand = branchOffset(opcode); break;
+			case I_REGIMM_BGEZ: handler = H_BGEZ; operand = branchOffset(opcode); break;
+			}
+			break;
+		case I_SPECIAL2:
+			if (DECODE_FUNCT(opcode) == I_SPEC2_MUL) handler = H_MUL;
+			break;
+		case I_J:     handler = H_J; operand = (opcode & 0x3FFFFFF) << 2; break;
+		case I_JAL:   handler = H_JAL; operand = (opcode & 0x3FFFFFF) << 2; break;
+		case I_BEQ:   handler = H_BEQ; operand = branchOffset(opcode); break;
+		case I_BNE:   handler = H_BNE; operand = branchOffset(opcode); break;
+		case I_BLEZ:  handler = H_BLEZ; operand = branchOffset(opcode); break;
+		case I_BGTZ:  handler = H_BGTZ; operand = branchOffset(opcode); break;
+		case I_BEQL:  handler = H_BEQL; operand = branchOffset(opcode); break;
+		case I_BNEL:  handler = H_BNEL; operand = branchOffset(opcode); break;
+		case I_ADDIU: handler = H_ADDIU; operand = DECODE_IMM16(opcode); break;
+		case I_SLTI:  handler = H_SLTI; operand = DECODE_IMM16(opcode); break;
+		case I_SLTIU: handler = H_SLTIU; operand = DECODE_IMM16(opcode); break;
+		case I_ANDI:  handler = H_ANDI; operand = DECODE_IMM16U(opcode); break;
+		case I_ORI:   handler = H_ORI; operand = DECODE_IMM16U(opcode); break;
+		case I_XORI:  handler = H_XORI; operand = DECODE_IMM16U(opcode); break;
+		case I_LUI:   handler = H_LUI; operand = DECODE_IMM16(opcode) << 16; break;
+		case I_LB:    handler = H_LB; operand = DECODE_IMM16(opcode); break;
+		case I_LH:    handler = H_LH; operand = DECODE_IMM16(opcode); break;
+		case I_LW:    handler = H_LW; operand = DECODE_IMM16(opcode); break;
+		case I_LBU:   handler = H_LBU; operand = DECODE_IMM16(opcode); break;
+		case I_LHU:   handler = H_LHU; operand = DECODE_IMM16(opcode); break;
+		case I_SB:    handler = H_SB; operand = DECODE_IMM16(opcode); break;
+		case I_SH:    handler = H_SH; operand = DECODE_IMM16(opcode); break;
+		case I_SW:    handler = H_SW; operand = DECODE_IMM16(opcode); break;
+		}
+
+		page[index] = fields(handler, opcode);
+		page[index + 1] = operand;
+	}
+
+	private static int branchOffset(int opcode) {
+		return 4 + 4 * DECODE_IMM16(opcode);
+	}
+}
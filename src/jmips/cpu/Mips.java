@@ -119,6 +119,7 @@ public class Mips {
 
 	// Number of TLB entries in Cop0
 	public static final int NUM_TLB_ENTRIES = 16;
+	public static final int MAX_TLB_ENTRIES = 64;
 
 	// Some bitmasks inside Cop0 registers
 	public static final int INDEX_MASK              = NUM_TLB_ENTRIES - 1;
@@ -173,6 +174,9 @@ public class Mips {
 	public static final int CONFIG_K0_MASK          = 0x00000003; // Kseg0 coherency algorithm
 	public static final int CONFIG_K0_DEFAULT       = 2;          // Uncached Kseg0
 
+	public static final int CONFIG1_MMU_SIZE_MASK   = 0x7E000000; // Number of TLB entries minus one
+	public static final int CONFIG1_MMU_SIZE_SHIFT  = 25;
+
 	// Memory error codes
 	public static final int MEMORY_ERROR_NOERROR = 0;                // Memory operation succeeded
 	public static final int MEMORY_ERROR_BUS_ERROR_INSTRUCTION = 1;  // I/O Bus error for opcode
@@ -1,6 +1,9 @@
 package jmips.cpu;
 
-public final class Ram implements Device {
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Ram implements Device {
 	private final int[] memory;
 	private final int size;
 
@@ -9,10 +12,22 @@ public final class Ram implements Device {
 		memory = new int[this.size >> 2];
 	}
 
+	// Used by the subclasses which keep the memory elsewhere
+	protected Ram(int size, int[] memory) {
+		this.size = size & (~3);
+		this.memory = memory;
+	}
+
 	public int getRamSize() {
 		return size;
 	}
 
+	// The words of the memory, for the code which accesses them directly,
+	// or null if the memory is kept elsewhere
+	public int[] getMemory() {
+		return memory;
+	}
+
 	@Override
 	public int read32(int offset) {
 		return memory[offset >>> 2];
@@ -65,6 +80,111 @@ public final class Ram implements Device {
 		memory[block] = val;
 	}
 
+	// Copies length bytes starting at offset into the array
+	public void readBytes(int offset, byte[] dst, int dstOffset, int length) {
+		readWords(memory, offset, dst, dstOffset, length);
+	}
+
+	// Copies length bytes from the array into the memory starting at offset
+	public void writeBytes(int offset, byte[] src, int srcOffset, int length) {
+		writeWords(memory, offset, src, srcOffset, length);
+	}
+
+	// Fills the remaining bytes of the buffer with the memory starting at offset
+	public void readBytes(int offset, ByteBuffer dst) {
+		int length = dst.remaining();
+		if (dst.hasArray()) {
+			readBytes(offset, dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		} else {
+			byte[] data = new byte[length];
+			readBytes(offset, data, 0, length);
+			dst.put(data);
+		}
+	}
+
+	// Copies the remaining bytes of the buffer into the memory starting at offset
+	public void writeBytes(int offset, ByteBuffer src) {
+		int length = src.remaining();
+		if (src.hasArray()) {
+			writeBytes(offset, src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.position() + length);
+		} else {
+			byte[] data = new byte[length];
+			src.get(data);
+			writeBytes(offset, data, 0, length);
+		}
+	}
+
+	// Clears length bytes starting at offset
+	public void zeroBytes(int offset, int length) {
+		zeroWords(memory, offset, length);
+	}
+
+	static void zeroWords(int[] words, int offset, int length) {
+		while (length > 0 && (offset & 3) != 0) {
+			words[offset >>> 2] &= ~(0xFF << (8 * (3 - (offset & 3))));
+			offset++;
+			length--;
+		}
+		Arrays.fill(words, offset >>> 2, (offset + (length & ~3)) >>> 2, 0);
+		offset += length & ~3;
+		length &= 3;
+		while (length > 0) {
+			words[offset >>> 2] &= ~(0xFF << (8 * (3 - (offset & 3))));
+			offset++;
+			length--;
+		}
+	}
+
+	// Byte copies from and to memory kept as big-endian words
+	static void readWords(int[] words, int offset, byte[] dst, int pos, int length) {
+		while (length > 0 && (offset & 3) != 0) {
+			dst[pos++] = (byte) (words[offset >>> 2] >>> (8 * (3 - (offset & 3))));
+			offset++;
+			length--;
+		}
+		while (length >= 4) {
+			int val = words[offset >>> 2];
+			dst[pos] = (byte) (val >>> 24);
+			dst[pos + 1] = (byte) (val >>> 16);
+			dst[pos + 2] = (byte) (val >>> 8);
+			dst[pos + 3] = (byte) val;
+			pos += 4;
+			offset += 4;
+			length -= 4;
+		}
+		while (length > 0) {
+			dst[pos++] = (byte) (words[offset >>> 2] >>> (8 * (3 - (offset & 3))));
+			offset++;
+			length--;
+		}
+	}
+
+	static void writeWords(int[] words, int offset, byte[] src, int pos, int length) {
+		while (length > 0 && (offset & 3) != 0) {
+			int portion = 8 * (3 - (offset & 3));
+			int block = offset >>> 2;
+			words[block] = (words[block] & ~(0xFF << portion)) | ((src[pos++] & 0xFF) << portion);
+			offset++;
+			length--;
+		}
+		while (length >= 4) {
+			words[offset >>> 2] = (src[pos] << 24) | ((src[pos + 1] & 0xFF) << 16) |
+			                      ((src[pos + 2] & 0xFF) << 8) | (src[pos + 3] & 0xFF);
+			pos += 4;
+			offset += 4;
+			length -= 4;
+		}
+		while (length > 0) {
+			int portion = 8 * (3 - (offset & 3));
+			int block = offset >>> 2;
+			words[block] = (words[block] & ~(0xFF << portion)) | ((src[pos++] & 0xFF) << portion);
+			offset++;
+			length--;
+		}
+	}
+
 	@Override
 	public boolean ioError() {
 		return false;
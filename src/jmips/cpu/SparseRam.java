@@ -0,0 +1,168 @@
+package jmips.cpu;
+
+/**
+ * Ram whose pages are only allocated when they are first written.
+ * The pages which were never written are read from a shared zero page.
+ */
+public final class SparseRam extends Ram {
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static final int[] ZERO_PAGE = new int[PAGE_SIZE >> 2];
+
+	private final int[][] pages;
+	private int residentPages;
+	private int touchedPages;
+
+	public SparseRam(int size) {
+		super(size, null);
+		pages = new int[(getRamSize() + PAGE_MASK) >>> PAGE_SHIFT][];
+		for(int i = 0; i < pages.length; i++)
+			pages[i] = ZERO_PAGE;
+	}
+
+	// Number of pages currently allocated
+	public int getResidentPages() {
+		return residentPages;
+	}
+
+	// Number of pages allocated since the creation of the memory,
+	// including the ones which were reclaimed afterwards
+	public int getTouchedPages() {
+		return touchedPages;
+	}
+
+	public boolean isResident(int offset) {
+		return pages[offset >>> PAGE_SHIFT] != ZERO_PAGE;
+	}
+
+	// Gives back the pages which contain only zeros to the shared zero page.
+	// Returns the number of pages reclaimed.
+	public int reclaimZeroPages() {
+		int reclaimed = 0;
+		for(int i = 0; i < pages.length; i++) {
+			int[] page = pages[i];
+			if (page == ZERO_PAGE) continue;
+
+			boolean zero = true;
+			for(int j = 0; j < page.length; j++) {
+				if (page[j] != 0) {
+					zero = false;
+					break;
+				}
+			}
+			if (zero) {
+				pages[i] = ZERO_PAGE;
+				residentPages--;
+				reclaimed++;
+			}
+		}
+		return reclaimed;
+	}
+
+	private int[] writablePage(int offset) {
+		int pageNumber = offset >>> PAGE_SHIFT;
+		int[] page = pages[pageNumber];
+		if (page == ZERO_PAGE) {
+			page = new int[PAGE_SIZE >> 2];
+			pages[pageNumber] = page;
+			residentPages++;
+			touchedPages++;
+		}
+		return page;
+	}
+
+	@Override
+	public void readBytes(int offset, byte[] dst, int dstOffset, int length) {
+		while (length > 0) {
+			int chunk = Math.min(length, PAGE_SIZE - (offset & PAGE_MASK));
+			readWords(pages[offset >>> PAGE_SHIFT], offset & PAGE_MASK, dst, dstOffset, chunk);
+			offset += chunk;
+			dstOffset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void writeBytes(int offset, byte[] src, int srcOffset, int length) {
+		while (length > 0) {
+			int chunk = Math.min(length, PAGE_SIZE - (offset & PAGE_MASK));
+			writeWords(writablePage(offset), offset & PAGE_MASK, src, srcOffset, chunk);
+			offset += chunk;
+			srcOffset += chunk;
+			length -= chunk;
+		}
+	}
+
+	// The pages which are completely cleared go back to the zero page
+	@Override
+	public void zeroBytes(int offset, int length) {
+		while (length > 0) {
+			int pageNumber = offset >>> PAGE_SHIFT;
+			int chunk = Math.min(length, PAGE_SIZE - (offset & PAGE_MASK));
+			if (pages[pageNumber] != ZERO_PAGE) {
+				if (chunk == PAGE_SIZE) {
+					pages[pageNumber] = ZERO_PAGE;
+					residentPages--;
+				} else {
+					zeroWords(pages[pageNumber], offset & PAGE_MASK, chunk);
+				}
+			}
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public int read32(int offset) {
+		return pages[offset >>> PAGE_SHIFT][(offset & PAGE_MASK) >>> 2];
+	}
+
+	@Override
+	public void write32(int offset, int value) {
+		writablePage(offset)[(offset & PAGE_MASK) >>> 2] = value;
+	}
+
+	@Override
+	public short read16(int offset) {
+		int portion = 2 - (offset & 2);
+		int val = read32(offset);
+		return (short) (val >>> (8 * portion));
+	}
+
+	@Override
+	public void write16(int offset, short value) {
+		int[] page = writablePage(offset);
+		int block = (offset & PAGE_MASK) >>> 2;
+		int val = page[block];
+		int s = ((int) value) & 0xFFFF;
+
+		if ((offset & 2) == 2) {
+			val = (val & 0xFFFF0000) | s;
+		} else {
+			val = (val & 0x0000FFFF) | (s << 16);
+		}
+		page[block] = val;
+	}
+
+	@Override
+	public byte read8(int offset) {
+		int portion = 3 - (offset & 3);
+		int val = read32(offset);
+		return (byte) (val >>> (8 * portion));
+	}
+
+	@Override
+	public void write8(int offset, byte value) {
+		int[] page = writablePage(offset);
+		int block = (offset & PAGE_MASK) >>> 2;
+		int portion = 3 - (offset & 3);
+		int val = page[block];
+		int b = ((int) value) & 0xFF;
+
+		portion *= 8;
+		val = (val & ~(0xFF << portion)) | (b << portion);
+		page[block] = val;
+	}
+}
@@ -0,0 +1,220 @@
+package jmips.cpu;
+
+/**
+ * Open-addressed index of the TLB entries. The entries are keyed by their
+ * masked VPN2 together with the slot of their page mask, so that entries
+ * with different page sizes never share a key. Entries with the same key
+ * (differing only in the ASID) are chained together.
+ */
+public final class TlbIndex {
+	private static final int EMPTY = 0;
+
+	private final TlbEntry[] entries;
+
+	// The open-addressed table (linear probing)
+	private final int[] keys;
+	private final int[] heads;
+	private final int tableMask;
+	private final int tableShift;
+
+	// Per entry information
+	private final int[] next;
+	private final int[] entryKeys;
+	private final int[] entrySlots;
+
+	// The page masks currently in use
+	private final int[] masks;
+	private final int[] maskRefs;
+	private final int[] activeSlots;
+	private int numActiveSlots;
+
+	public TlbIndex(TlbEntry[] entries) {
+		this.entries = entries;
+
+		int tableSize = 16;
+		while (tableSize < 4 * entries.length)
+			tableSize <<= 1;
+		this.keys = new int[tableSize];
+		this.heads = new int[tableSize];
+		this.tableMask = tableSize - 1;
+		this.tableShift = 32 - Integer.numberOfTrailingZeros(tableSize);
+
+		this.next = new int[entries.length];
+		this.entryKeys = new int[entries.length];
+		this.entrySlots = new int[entries.length];
+
+		this.masks = new int[entries.length];
+		this.maskRefs = new int[entries.length];
+		this.activeSlots = new int[entries.length];
+	}
+
+	public void clear() {
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = EMPTY;
+		for(int i = 0; i < entries.length; i++) {
+			entryKeys[i] = EMPTY;
+			maskRefs[i] = 0;
+		}
+		numActiveSlots = 0;
+	}
+
+	// Returns the index of the entry matching the address, or -1 if none
+	public int lookup(int address, int ASID) {
+		for(int i = 0; i < numActiveSlots; i++) {
+			int slot = activeSlots[i];
+			int pos = find(makeKey(address & masks[slot], slot));
+			if (pos < 0) continue;
+			for(int idx = heads[pos]; idx >= 0; idx = next[idx]) {
+				TlbEntry tlbEntry = entries[idx];
+				if (tlbEntry.isGlobal() || tlbEntry.getASID() == ASID)
+					return idx;
+			}
+		}
+		return -1;
+	}
+
+	// Returns the index of an entry (other than skipIndex) which overlaps
+	// the given one, or -1 if there is no such entry
+	public int findConflict(int VPN2, int pageMask, int ASID, boolean global, int skipIndex) {
+		for(int i = 0; i < numActiveSlots; i++) {
+			int slot = activeSlots[i];
+			int mask = masks[slot];
+			int base = VPN2 & mask & pageMask;
+			int diff = mask & ~pageMask;
+			int idx;
+
+			if (diff != 0 && (1L << Integer.bitCount(diff)) > entries.length) {
+				// Too many possible keys, it is cheaper to check every entry
+				for(idx = 0; idx < entries.length; idx++) {
+					if (entryKeys[idx] == EMPTY || entrySlots[idx] != slot) continue;
+					if ((entries[idx].getVPN2() & pageMask) != base) continue;
+					if (conflicts(idx, ASID, global, skipIndex)) return idx;
+				}
+				continue;
+			}
+
+			int sub = 0;
+			do {
+				idx = findInChain(makeKey(base | sub, slot), ASID, global, skipIndex);
+				if (idx >= 0) return idx;
+				sub = (sub - diff) & diff;
+			} while (sub != 0);
+		}
+		return -1;
+	}
+
+	private int findInChain(int key, int ASID, boolean global, int skipIndex) {
+		int pos = find(key);
+		if (pos >= 0) {
+			for(int idx = heads[pos]; idx >= 0; idx = next[idx]) {
+				if (conflicts(idx, ASID, global, skipIndex)) return idx;
+			}
+		}
+		return -1;
+	}
+
+	private boolean conflicts(int idx, int ASID, boolean global, int skipIndex) {
+		if (idx == skipIndex) return false;
+		TlbEntry tlbEntry = entries[idx];
+		return global || tlbEntry.isGlobal() || tlbEntry.getASID() == ASID;
+	}
+
+	public void add(int index) {
+		TlbEntry tlbEntry = entries[index];
+		int slot = acquireSlot(tlbEntry.getPageMask());
+		int key = makeKey(tlbEntry.getVPN2(), slot);
+		entryKeys[index] = key;
+		entrySlots[index] = slot;
+
+		int pos = hash(key);
+		while (keys[pos] != EMPTY) {
+			if (keys[pos] == key) {
+				next[index] = heads[pos];
+				heads[pos] = index;
+				return;
+			}
+			pos = (pos + 1) & tableMask;
+		}
+		keys[pos] = key;
+		heads[pos] = index;
+		next[index] = -1;
+	}
+
+	public void remove(int index) {
+		int key = entryKeys[index];
+		if (key == EMPTY) return;
+		entryKeys[index] = EMPTY;
+		releaseSlot(entrySlots[index]);
+
+		int pos = find(key);
+		if (heads[pos] == index) {
+			heads[pos] = next[index];
+			if (heads[pos] < 0) delete(pos);
+		} else {
+			int idx = heads[pos];
+			while (next[idx] != index)
+				idx = next[idx];
+			next[idx] = next[index];
+		}
+	}
+
+	private static int makeKey(int VPN2, int slot) {
+		return VPN2 | (slot << 1) | 1;
+	}
+
+	private int hash(int key) {
+		return (key * 0x9E3779B9) >>> tableShift;
+	}
+
+	private int find(int key) {
+		int pos = hash(key);
+		while (keys[pos] != EMPTY) {
+			if (keys[pos] == key) return pos;
+			pos = (pos + 1) & tableMask;
+		}
+		return -1;
+	}
+
+	// Backward shift deletion, so that no tombstones are needed
+	private void delete(int pos) {
+		int gap = pos;
+		while (true) {
+			pos = (pos + 1) & tableMask;
+			int key = keys[pos];
+			if (key == EMPTY) break;
+			int home = hash(key);
+			if (((pos - home) & tableMask) >= ((pos - gap) & tableMask)) {
+				keys[gap] = key;
+				heads[gap] = heads[pos];
+				gap = pos;
+			}
+		}
+		keys[gap] = EMPTY;
+	}
+
+	private int acquireSlot(int pageMask) {
+		int free = -1;
+		for(int slot = 0; slot < masks.length; slot++) {
+			if (maskRefs[slot] == 0) {
+				if (free < 0) free = slot;
+			} else if (masks[slot] == pageMask) {
+				maskRefs[slot]++;
+				return slot;
+			}
+		}
+		masks[free] = pageMask;
+		maskRefs[free] = 1;
+		activeSlots[numActiveSlots++] = free;
+		return free;
+	}
+
+	private void releaseSlot(int slot) {
+		if (--maskRefs[slot] != 0) return;
+		for(int i = 0; i < numActiveSlots; i++) {
+			if (activeSlots[i] == slot) {
+				activeSlots[i] = activeSlots[--numActiveSlots];
+				break;
+			}
+		}
+	}
+}
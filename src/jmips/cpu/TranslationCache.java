@@ -0,0 +1,70 @@
+package jmips.cpu;
+
+/**
+ * Direct-mapped cache of virtual to physical page translations.
+ * The entries are indexed by the virtual page number and tagged
+ * with the virtual page and the ASID in which they were filled.
+ */
+public final class TranslationCache {
+	public static final int DEFAULT_SIZE = 1024;
+
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+	private static final int TAG_VALID = 0x100;
+
+	private final int[] tags;
+	private final int[] frames;
+	private final int mask;
+
+	public TranslationCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	public TranslationCache(int size) {
+		if (size <= 0 || (size & (size - 1)) != 0)
+			throw new IllegalArgumentException("The size must be a power of two");
+		this.tags = new int[size];
+		this.frames = new int[size];
+		this.mask = size - 1;
+	}
+
+	public int getSize() {
+		return tags.length;
+	}
+
+	// Returns the physical address, or -1 if the translation is not cached
+	public int lookup(int address, int ASID) {
+		int slot = (address >>> PAGE_SHIFT) & mask;
+		if (tags[slot] == ((address & ~PAGE_MASK) | TAG_VALID | ASID)) {
+			return frames[slot] | (address & PAGE_MASK);
+		}
+		return -1;
+	}
+
+	public void fill(int address, int ASID, int physicalAddress) {
+		int slot = (address >>> PAGE_SHIFT) & mask;
+		tags[slot] = (address & ~PAGE_MASK) | TAG_VALID | ASID;
+		frames[slot] = physicalAddress & ~PAGE_MASK;
+	}
+
+	// Invalidates all the translations of the virtual pages inside the range
+	public void invalidateRange(int address, int size) {
+		int numPages = (size + PAGE_MASK) >>> PAGE_SHIFT;
+		if (numPages < 0 || numPages >= tags.length) {
+			invalidateAll();
+			return;
+		}
+		address &= ~PAGE_MASK;
+		for(int i = 0; i < numPages; i++) {
+			int slot = (address >>> PAGE_SHIFT) & mask;
+			if ((tags[slot] & ~PAGE_MASK) == address)
+				tags[slot] = 0;
+			address += 1 << PAGE_SHIFT;
+		}
+	}
+
+	public void invalidateAll() {
+		for(int i = 0; i < tags.length; i++)
+			tags[i] = 0;
+	}
+}
@@ -0,0 +1,161 @@
+package jmips.cpu.dynrec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory keeping the classes of the recompiled blocks across runs (and
+ * across the emulators sharing it). The files are named after a hash of the
+ * instructions of the block, of the version of the translation and of the
+ * mode of the cpu it was translated for (see DynamicRecompiler.getMode). They
+ * also contain the instructions themselves, so a block is never replaced
+ * by a different one with the same hash.
+ */
+public final class BlockCache {
+	private static final int MAGIC = 0x4A4D4243;
+	private static final int MAX_CLASS_SIZE = 1 << 20;
+
+	private final File directory;
+	private final AtomicLong numHits = new AtomicLong();
+	private final AtomicLong numMisses = new AtomicLong();
+	private final AtomicLong numWriteErrors = new AtomicLong();
+
+	public BlockCache(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public static long hash(int[] code, int mode) {
+		// 64 bit FNV-1a over the bytes of the instructions
+		long hash = 0xCBF29CE484222325L;
+		hash = (hash ^ DynamicRecompiler.TRANSLATION_VERSION) * 0x100000001B3L;
+		hash = (hash ^ mode) * 0x100000001B3L;
+		for(int i = 0; i < code.length; i++) {
+			int word = code[i];
+			for(int j = 0; j < 4; j++) {
+				hash = (hash ^ (word & 0xFF)) * 0x100000001B3L;
+				word >>>= 8;
+			}
+		}
+		return hash;
+	}
+
+	// The internal name of the class of the block
+	public static String getClassName(int[] code, int mode) {
+		return "jmips/cpu/dynrec/Block_" + toHex(hash(code, mode));
+	}
+
+	private static String toHex(long hash) {
+		String hex = Long.toHexString(hash);
+		while (hex.length() < 16)
+			hex = "0" + hex;
+		return hex;
+	}
+
+	private File getFile(int[] code, int mode) {
+		String hex = toHex(hash(code, mode));
+		return new File(new File(directory, hex.substring(0, 2)), hex + ".blk");
+	}
+
+	// Returns the class of the block with the given instructions,
+	// or null if it is not in the cache
+	public byte[] load(int[] code, int mode) {
+		File file = getFile(code, mode);
+		if (!file.isFile()) {
+			numMisses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (is.readInt() != MAGIC || is.readInt() != DynamicRecompiler.TRANSLATION_VERSION
+						|| is.readInt() != mode)
+					return miss();
+				int length = is.readInt();
+				if (length != code.length)
+					return miss();
+				for(int i = 0; i < length; i++) {
+					if (is.readInt() != code[i])
+						return miss();
+				}
+
+				int size = is.readInt();
+				if (size <= 0 || size > MAX_CLASS_SIZE)
+					return miss();
+				byte[] b = new byte[size];
+				is.readFully(b);
+				numHits.incrementAndGet();
+				return b;
+			} finally {
+				is.close();
+			}
+		} catch (IOException ex) {
+			return miss();
+		}
+	}
+
+	private byte[] miss() {
+		numMisses.incrementAndGet();
+		return null;
+	}
+
+	// Saves the class of the block. The file is written under a temporary
+	// name and then renamed, so that other emulators never see it partially
+	// written.
+	public void store(int[] code, int mode, byte[] b) {
+		File file = getFile(code, mode);
+		File temp = null;
+		try {
+			File parent = file.getParentFile();
+			parent.mkdirs();
+			temp = File.createTempFile("block", ".tmp", parent);
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				os.writeInt(MAGIC);
+				os.writeInt(DynamicRecompiler.TRANSLATION_VERSION);
+				os.writeInt(mode);
+				os.writeInt(code.length);
+				for(int i = 0; i < code.length; i++)
+					os.writeInt(code[i]);
+				os.writeInt(b.length);
+				os.write(b);
+			} finally {
+				os.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Can't rename " + temp);
+			}
+			temp = null;
+		} catch (IOException ex) {
+			numWriteErrors.incrementAndGet();
+		} finally {
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	public long getNumHits() {
+		return numHits.get();
+	}
+
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+
+	public long getNumWriteErrors() {
+		return numWriteErrors.get();
+	}
+}
@@ -0,0 +1,321 @@
+package jmips.cpu.dynrec;
+
+import static jmips.cpu.Mips.*;
+
+/**
+ * Pass over the instructions of a block (or trace), made before its code is
+ * generated. It finds the registers holding known constants before each
+ * instruction, the instructions whose result is a constant (which are then
+ * folded by the recompiler) and the writes to registers which are
+ * overwritten before anything can see them (which are dropped).
+ * The constants are only followed along straight line code, and are
+ * forgotten wherever the code can also be entered by a jump.
+ */
+public final class BlockOptimizer {
+	private int length;
+
+	// The registers known before each instruction, and their values
+	private final long[] known;
+	private final int[] values;
+
+	// Whether the code can be entered at each position by a jump
+	private final boolean[] entries;
+
+	private final boolean[] folded;
+	private final int[] results;
+	private final boolean[] dead;
+
+	// The value computed by evaluate
+	private int result;
+
+	public BlockOptimizer(int maxLength) {
+		this.known = new long[maxLength];
+		this.values = new int[32 * maxLength];
+		this.entries = new boolean[maxLength];
+		this.folded = new boolean[maxLength];
+		this.results = new int[maxLength];
+		this.dead = new boolean[maxLength];
+	}
+
+	// Analyzes the instructions, given their relative addresses and the
+	// positions where the branches of a trace continue (or -1)
+	public void optimize(int[] opcodes, int[] addressOffsets, int[] continuations, int length) {
+		this.length = length;
+		findEntries(opcodes, addressOffsets, continuations);
+		propagateConstants(opcodes);
+		for(int i = 0; i < length; i++)
+			dead[i] = isDeadWrite(opcodes, i);
+	}
+
+	// Whether the register has a known value before the instruction
+	public boolean isKnown(int position, int reg) {
+		return reg == 0 || (known[position] & (1L << reg)) != 0;
+	}
+
+	public int getValue(int position, int reg) {
+		return (reg == 0) ? 0 : values[32 * position + reg];
+	}
+
+	// Whether the instruction only writes a known value to a register
+	public boolean isFolded(int position) {
+		return folded[position];
+	}
+
+	public int getResult(int position) {
+		return results[position];
+	}
+
+	// Whether the instruction has no visible effects and can be dropped
+	public boolean isDead(int position) {
+		return dead[position];
+	}
+
+	private void findEntries(int[] opcodes, int[] addressOffsets, int[] continuations) {
+		for(int i = 0; i < length; i++)
+			entries[i] = (i == 0) || (i >= 2 && DynamicRecompiler.isBranch(opcodes[i - 2]));
+		for(int i = 0; i + 1 < length; i++) {
+			int opcode = opcodes[i];
+			if (!DynamicRecompiler.isBranch(opcode)) continue;
+			if (continuations[i] >= 0)
+				entries[continuations[i]] = true;
+			switch(DECODE_OP(opcode)) {
+			case I_SPECIAL:
+			case I_J:
+			case I_JAL:
+				continue;
+			}
+			// The branches back into the block
+			int offset = addressOffsets[i] + 4 + 4 * DECODE_IMM16(opcode);
+			for(int j = 0; j <= i; j++) {
+				if (addressOffsets[j] == offset && (j == 0 || !DynamicRecompiler.isBranch(opcodes[j - 1])))
+					entries[j] = true;
+			}
+		}
+	}
+
+	private void propagateConstants(int[] opcodes) {
+		long current = 0;
+		int[] currentValues = new int[32];
+		for(int i = 0; i < length; i++) {
+			if (entries[i]) current = 0;
+			known[i] = current;
+			System.arraycopy(currentValues, 0, values, 32 * i, 32);
+
+			int opcode = opcodes[i];
+			int reg = getDestination(opcode);
+			folded[i] = reg >= 0 && evaluate(opcode, i);
+			if (folded[i]) {
+				results[i] = result;
+				if (reg != 0) {
+					current |= 1L << reg;
+					currentValues[reg] = result;
+				}
+			} else {
+				current &= ~clobbered(opcode);
+			}
+		}
+	}
+
+	// The write of the instruction is dead if the register is written again
+	// before it is read and before the block can be left
+	private boolean isDeadWrite(int[] opcodes, int position) {
+		int opcode = opcodes[position];
+		int reg = getDestination(opcode);
+		if (reg < 0 || !(folded[position] || isSimple(opcode)))
+			return false;
+		if (reg == 0)
+			return true;
+		for(int i = position + 1; i < length; i++) {
+			opcode = opcodes[i];
+			if (entries[i] || !(folded[i] || isSimple(opcode)))
+				return false;
+			if (!folded[i] && reads(opcode, reg) && !isKnown(i, reg))
+				return false;
+			if (getDestination(opcode) == reg)
+				return true;
+		}
+		return false;
+	}
+
+	// The register written by the instructions which can be folded
+	// (or by MFHI and MFLO), or -1
+	private static int getDestination(int opcode) {
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_SLL:
+			case I_SPEC_SRL:
+			case I_SPEC_SRA:
+			case I_SPEC_SLLV:
+			case I_SPEC_SRLV:
+			case I_SPEC_SRAV:
+			case I_SPEC_MFHI:
+			case I_SPEC_MFLO:
+			case I_SPEC_ADD:
+			case I_SPEC_ADDU:
+			case I_SPEC_SUB:
+			case I_SPEC_SUBU:
+			case I_SPEC_AND:
+			case I_SPEC_OR:
+			case I_SPEC_XOR:
+			case I_SPEC_NOR:
+			case I_SPEC_SLT:
+			case I_SPEC_SLTU:
+				return DECODE_RD(opcode);
+			}
+			return -1;
+		case I_SPECIAL2:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC2_MUL:
+			case I_SPEC2_CLZ:
+			case I_SPEC2_CLO:
+				return DECODE_RD(opcode);
+			}
+			return -1;
+		case I_ADDI:
+		case I_ADDIU:
+		case I_SLTI:
+		case I_SLTIU:
+		case I_ANDI:
+		case I_ORI:
+		case I_XORI:
+		case I_LUI:
+			return DECODE_RT(opcode);
+		}
+		return -1;
+	}
+
+	// The instructions which never leave the block, so the ones with a
+	// destination except those which may overflow
+	private static boolean isSimple(int opcode) {
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_ADD:
+			case I_SPEC_SUB:
+				return false;
+			case I_SPEC_MOVZ:
+			case I_SPEC_MOVN:
+				return true;
+			}
+			break;
+		case I_ADDI:
+			return false;
+		}
+		return getDestination(opcode) >= 0;
+	}
+
+	// Whether the instruction (one of the simple ones) reads the register
+	private static boolean reads(int opcode, int reg) {
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_MOVZ:
+			case I_SPEC_MOVN:
+				// The old value is kept when the move is not done
+				if (DECODE_RD(opcode) == reg) return true;
+				break;
+			}
+			return DECODE_RS(opcode) == reg || DECODE_RT(opcode) == reg;
+		case I_SPECIAL2:
+			return DECODE_RS(opcode) == reg || DECODE_RT(opcode) == reg;
+		}
+		return DECODE_RS(opcode) == reg;
+	}
+
+	// The registers which might be written by any instruction
+	private static long clobbered(int opcode) {
+		switch(DECODE_OP(opcode)) {
+		case I_SB:
+		case I_SH:
+		case I_SWL:
+		case I_SW:
+		case I_SWR:
+		case I_BEQ:
+		case I_BNE:
+		case I_BLEZ:
+		case I_BGTZ:
+		case I_BEQL:
+		case I_BNEL:
+		case I_BLEZL:
+		case I_BGTZL:
+		case I_J:
+			return 0;
+		}
+		return (1L << DECODE_RD(opcode)) | (1L << DECODE_RT(opcode)) | (1L << GPR_RA);
+	}
+
+	// Computes the result of the instruction into result, if all of
+	// its operands are known and it doesn't raise exceptions
+	private boolean evaluate(int opcode, int position) {
+		int rs = DECODE_RS(opcode);
+		int rt = DECODE_RT(opcode);
+		boolean knownRs = isKnown(position, rs);
+		boolean knownRt = isKnown(position, rt);
+		int s = getValue(position, rs);
+		int t = getValue(position, rt);
+		int imm = DECODE_IMM16(opcode);
+
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			if (!knownRt) return false;
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_SLL: result = t << DECODE_SA(opcode); return true;
+			case I_SPEC_SRL: result = t >>> DECODE_SA(opcode); return true;
+			case I_SPEC_SRA: result = t >> DECODE_SA(opcode); return true;
+			case I_SPEC_MFHI:
+			case I_SPEC_MFLO:
+				return false;
+			}
+			if (!knownRs) return false;
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_SLLV: result = t << s; return true;
+			case I_SPEC_SRLV: result = t >>> s; return true;
+			case I_SPEC_SRAV: result = t >> s; return true;
+			case I_SPEC_ADD:
+				result = s + t;
+				return ((s ^ result) & (t ^ result)) >= 0;
+			case I_SPEC_ADDU: result = s + t; return true;
+			case I_SPEC_SUB:
+				result = s - t;
+				return ((s ^ t) & (s ^ result)) >= 0;
+			case I_SPEC_SUBU: result = s - t; return true;
+			case I_SPEC_AND: result = s & t; return true;
+			case I_SPEC_OR: result = s | t; return true;
+			case I_SPEC_XOR: result = s ^ t; return true;
+			case I_SPEC_NOR: result = ~(s | t); return true;
+			case I_SPEC_SLT: result = (s < t) ? 1 : 0; return true;
+			case I_SPEC_SLTU: result = ((s ^ 0x80000000) < (t ^ 0x80000000)) ? 1 : 0; return true;
+			}
+			return false;
+		case I_SPECIAL2:
+			if (!knownRs) return false;
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC2_CLZ: result = Integer.numberOfLeadingZeros(s); return true;
+			case I_SPEC2_CLO: result = Integer.numberOfLeadingZeros(~s); return true;
+			case I_SPEC2_MUL:
+				if (!knownRt) return false;
+				result = s * t;
+				return true;
+			}
+			return false;
+		case I_LUI:
+			result = imm << 16;
+			return true;
+		}
+
+		if (!knownRs) return false;
+		switch(DECODE_OP(opcode)) {
+		case I_ADDI:
+			result = s + imm;
+			return ((s ^ result) & (imm ^ result)) >= 0;
+		case I_ADDIU: result = s + imm; return true;
+		case I_SLTI: result = (s < imm) ? 1 : 0; return true;
+		case I_SLTIU: result = ((s ^ 0x80000000) < (imm ^ 0x80000000)) ? 1 : 0; return true;
+		case I_ANDI: result = s & DECODE_IMM16U(opcode); return true;
+		case I_ORI: result = s | DECODE_IMM16U(opcode); return true;
+		case I_XORI: result = s ^ DECODE_IMM16U(opcode); return true;
+		}
+		return false;
+	}
+}
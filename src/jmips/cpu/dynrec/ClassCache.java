@@ -0,0 +1,120 @@
+package jmips.cpu.dynrec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Classes of the recompiled blocks, shared by the engines of the same JVM
+ * (such as the ones of many systems booting the same kernel). They are
+ * keyed by the instructions of the block and the mode of the cpu (see
+ * DynamicRecompiler.getMode), like in the BlockCache, since the generated
+ * code depends on nothing else. The classes keep no state, so each engine
+ * creates its own instances of them, which hold the links and the counters.
+ * The classes are counted by the blocks using them, and are removed once
+ * all of these were dropped, so that they can be unloaded.
+ */
+public final class ClassCache {
+	private static final ClassCache shared = new ClassCache();
+
+	private final HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+	private long numHits;
+	private long numMisses;
+
+	// The cache of the whole JVM
+	public static ClassCache getShared() {
+		return shared;
+	}
+
+	// Returns the entry of the class of the block with one more
+	// reference, or null if there is none
+	synchronized Entry acquire(int[] code, int mode) {
+		Entry entry = entries.get(new Key(code, mode));
+		if (entry == null) {
+			numMisses++;
+			return null;
+		}
+		numHits++;
+		entry.references++;
+		return entry;
+	}
+
+	// Adds the class of the block, unless another thread added one in the
+	// meantime. Returns the entry kept, with one more reference.
+	synchronized Entry add(int[] code, int mode, Class<?> blockClass, int codeSize) {
+		Key key = new Key(Arrays.copyOf(code, code.length), mode);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key, blockClass, codeSize);
+			entries.put(key, entry);
+		}
+		entry.references++;
+		return entry;
+	}
+
+	synchronized void release(Entry entry) {
+		if (--entry.references == 0 && entries.get(entry.key) == entry)
+			entries.remove(entry.key);
+	}
+
+	public synchronized int getNumClasses() {
+		return entries.size();
+	}
+
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+	final class Entry {
+		private final Key key;
+		private final Class<?> blockClass;
+		private final int codeSize;
+		private int references;
+
+		private Entry(Key key, Class<?> blockClass, int codeSize) {
+			this.key = key;
+			this.blockClass = blockClass;
+			this.codeSize = codeSize;
+		}
+
+		public Class<?> getBlockClass() {
+			return blockClass;
+		}
+
+		public int getCodeSize() {
+			return codeSize;
+		}
+
+		// Called by the block using the class when it is dropped
+		public void release() {
+			ClassCache.this.release(this);
+		}
+	}
+
+	private static final class Key {
+		private final int[] code;
+		private final int mode;
+		private final int hash;
+
+		public Key(int[] code, int mode) {
+			this.code = code;
+			this.mode = mode;
+			this.hash = 31 * Arrays.hashCode(code) + mode;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return hash == other.hash && mode == other.mode && Arrays.equals(code, other.code);
+		}
+	}
+}
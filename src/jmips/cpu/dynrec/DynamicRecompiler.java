@@ -2,62 +2,454 @@ package jmips.cpu.dynrec;
 
 import static jmips.cpu.Mips.*;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.List;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jmips.cpu.Cpu;
-import jmips.cpu.Mips;
 
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.util.Printer;
-import org.objectweb.asm.util.Textifier;
-import org.objectweb.asm.util.TraceMethodVisitor;
 
-public class DynamicRecompiler extends ClassLoader {
-	public static final int BLOCK_SIZE = 4096;
+/**
+ * Translates blocks of MIPS instructions to JVM bytecode. A block starts at
+ * a given physical address and runs until the first branch (and its delay
+ * slot), the end of the page, or an instruction which must be left to the
+ * interpreter (the CP0 and CACHE instructions).
+ * The generated code checks the cycle budget on entry and on the branches
+ * back into the block, which are translated into loops. The exits to static
+ * targets tell which link was taken, so that the engine can go straight
+ * to the next block.
+ * The guest registers used by the block live in local variables, so they
+ * are read once on entry and only the modified ones are written back when
+ * leaving the block. The values known at compile time (see BlockOptimizer)
+ * are used as constants, and the writes nobody sees are dropped.
+ * The aligned loads and stores to the RAM access its words directly, with
+ * the byte order of the cpu fixed when the block is recompiled. Everything
+ * else (the I/O, the exceptions and the stores to the pages with code)
+ * goes through the methods of the cpu.
+ * The blocks are defined in small groups, each by its own class loader,
+ * so that the classes can be unloaded once the blocks are dropped. The
+ * classes of the blocks can also be shared by the recompilers of many
+ * engines through a ClassCache. The classes are named after the guest
+ * function of their code, when known (but not the ones of the BlockCache,
+ * which are named after their instructions).
+ * Traces are sequences of blocks which were seen executing one after the
+ * other, possibly in different pages. They are recompiled as a single
+ * method, where each branch continues with the next block of the trace
+ * if it goes to the same place as when the trace was recorded, and leaves
+ * the trace otherwise. The blocks in other pages are only entered if their
+ * pages are still mapped to the same physical pages.
+ */
+public class DynamicRecompiler {
+	public static final int PAGE_SIZE = 4096;
+	public static final int MAX_BLOCK_LENGTH = 64; // Keeps the methods small enough for the JIT
+	public static final int MAX_TRACE_LENGTH = 256;
+	private static final int MAX_TRACE_CLASS_SIZE = 8000; // The JIT doesn't compile larger methods
+	private static final int BLOCKS_PER_LOADER = 16;
+	private static final int MAX_SYMBOL_LENGTH = 64;
+
+	// Must be changed whenever the generated code changes, since it
+	// is part of the keys of the BlockCache
+	public static final int TRANSLATION_VERSION = 5;
 
 	private static final int VAR_CPU = 1;
 	private static final int VAR_NUM_CYCLES = 2;
 	private static final int VAR_PC = 3;
-	private static final int VAR_TEMP_INTEGER1 = 4;
-	private static final int VAR_TEMP_INTEGER2 = 5;
-	private static final int VAR_TEMP_INTEGER3 = 6;
+	private static final int VAR_TARGET = 4;
+	private static final int VAR_TEMP_INTEGER1 = 5;
+	private static final int VAR_TEMP_INTEGER2 = 6;
+	private static final int VAR_TEMP_INTEGER3 = 7;
+	private static final int VAR_GPR = 8; // The local of a guest register is VAR_GPR + reg
+	private static final int VAR_HI = VAR_GPR + 32;
+	private static final int VAR_LO = VAR_GPR + 33;
+	private static final int VAR_MEMORY = VAR_GPR + 34;
+
+	// The bits of the mode of the cpu which the blocks depend on
+	public static final int MODE_LITTLE_ENDIAN = 1;
+
+	// Bits of the register masks
+	private static final long MASK_HI = 1L << 32;
+	private static final long MASK_LO = 1L << 33;
+
+	private static final String CPU_CLASS = "jmips/cpu/Cpu";
 
 	private static final AtomicInteger counter = new AtomicInteger();
 
-	private MethodVisitor mv;
-	private Printer printer;
-	private Label labels[];
-	private Label returnLabel, jumpLabel;
-	private Cpu cpu;
+	// The classes of the blocks defined by all the recompilers, and the
+	// ones unloaded since (noticed when their loaders are collected)
+	private static final AtomicLong numDefinedClasses = new AtomicLong();
+	private static final AtomicLong definedClassBytes = new AtomicLong();
+	private static final AtomicLong numUnloadedClasses = new AtomicLong();
+	private static final AtomicLong unloadedClassBytes = new AtomicLong();
+	private static final ReferenceQueue<BlockLoader> collectedLoaders = new ReferenceQueue<BlockLoader>();
+	private static final Set<LoaderReference> loaderReferences =
+		Collections.synchronizedSet(new HashSet<LoaderReference>());
+
+	private BlockLoader loader;
+	private LoaderReference loaderReference;
+	private int numLoaded;
+	private BlockCache blockCache;
+	private ClassCache classCache;
+	private boolean bigEndian = true;
+	private String symbol;
 
-	
+	private MethodVisitor mv;
+	private int[] opcodes = new int[MAX_TRACE_LENGTH];
+	private int length;
+
+	// The virtual address of each instruction, relative to the first one.
+	// For the traces, the position where each branch continues (or -1 for
+	// the last one), and the physical address expected at the start of
+	// the blocks in another page (or -1).
+	private int[] addressOffsets = new int[MAX_TRACE_LENGTH + 1];
+	private int[] continuations = new int[MAX_TRACE_LENGTH];
+	private int[] guards = new int[MAX_TRACE_LENGTH];
+	private Label[] sideExitLabels;
+	private Label[] notTakenLabels;
+	private Label[] labels;
+	private Label[] budgetExitLabels;
+	private Label entryExitLabel;
+	private Label[] requestedExitLabels;
+	private Label[] interpretedExitLabels;
+	private Label[] memoryFaultLabels;
+	private Label[] sliceExitLabels;
+
+	// The registers read or written by the block, and the ones which
+	// might have been modified up to each of the instructions. These
+	// are found by a first pass which doesn't generate any code.
+	private boolean analyzing;
+	private long usedRegisters;
+	private long[] writtenRegisters = new long[MAX_TRACE_LENGTH];
+	private boolean loops;
+	private boolean accessesMemory;
+
+	// The constants and dead writes found before generating the code
+	private final BlockOptimizer optimizer = new BlockOptimizer(MAX_TRACE_LENGTH);
+
+	// The instruction being recompiled
+	private int index;
+	private boolean delaySlot;
+
+	// Recompiles the block starting at the physical address, which will be
+	// executed with the pc of the cpu pointing to its first instruction.
+	// Returns null if the first instruction can't be recompiled.
 	public RecompiledBlock recompile(Cpu cpu, int blockPhysicalAddress) {
-		int id;
+		int[] code = scanBlock(cpu, blockPhysicalAddress);
+		if (code == null)
+			return null;
+		setBigEndian(cpu.isBigEndian());
+		return recompile(code);
+	}
+
+	// Recompiles the instructions returned by scanBlock. This doesn't
+	// access the cpu, so it can be done by any thread.
+	public RecompiledBlock recompile(int[] code) {
+		length = 0;
+		addCode(code, 0);
+		addressOffsets[length] = 4 * length;
+
+		if (classCache == null)
+			return defineBlock(code);
+
+		RecompiledBlock block = null;
+		ClassCache.Entry entry = classCache.acquire(code, getMode());
+		if (entry == null) {
+			block = defineBlock(code);
+			if (block == null) return null;
+			entry = classCache.add(code, getMode(), block.getClass(), block.getCodeSize());
+		}
+		// Unless another recompiler added the same block in the meantime
+		if (block == null || block.getClass() != entry.getBlockClass())
+			block = instantiate(entry.getBlockClass(), entry.getCodeSize());
+		if (block == null)
+			entry.release();
+		else
+			block.setSharedClass(entry);
+		return block;
+	}
+
+	private RecompiledBlock defineBlock(int[] code) {
+		String name;
 		byte[] b;
 
-		if (blockPhysicalAddress >= cpu.getRam().getRamSize())
+		if (blockCache != null) {
+			name = BlockCache.getClassName(code, getMode());
+			b = blockCache.load(code, getMode());
+			if (b != null) {
+				try {
+					return define(name, b);
+				} catch (LinkageError error) {
+					// The class in the cache is broken, so it is replaced
+				}
+			}
+			b = recompileBlock(name);
+			blockCache.store(code, getMode(), b);
+		} else {
+			name = "jmips/cpu/dynrec/Block_" + counter.incrementAndGet() + getSymbolSuffix();
+			b = recompileBlock(name);
+		}
+		return define(name, b);
+	}
+
+	// Recompiles a trace, given the instructions of its blocks (as returned
+	// by scanBlock), their physical addresses and their virtual addresses
+	// relative to the first block. If closed is true, the last block goes
+	// back to the first. Returns null if the trace is too large.
+	public RecompiledBlock recompileTrace(int[][] codes, int[] physicalAddresses, int[] offsets, boolean closed) {
+		int pageOffset = physicalAddresses[0] & (PAGE_SIZE - 1);
+		int branch = -1;
+
+		length = 0;
+		for(int i = 0; i < codes.length; i++) {
+			if (length + codes[i].length > MAX_TRACE_LENGTH)
+				return null;
+			int start = length;
+			addCode(codes[i], offsets[i]);
+			if (i > 0) {
+				if (branch >= 0)
+					continuations[branch] = start;
+				if (((pageOffset + offsets[i]) >> 12) != ((pageOffset + offsets[i - 1]) >> 12))
+					guards[start] = physicalAddresses[i];
+			}
+			branch = (codes[i].length >= 2 && isBranch(codes[i][codes[i].length - 2])) ? length - 2 : -1;
+		}
+		if (closed && branch >= 0)
+			continuations[branch] = 0;
+		addressOffsets[length] = offsets[codes.length - 1] + 4 * codes[codes.length - 1].length;
+
+		String name = "jmips/cpu/dynrec/Trace_" + counter.incrementAndGet() + getSymbolSuffix();
+		byte[] b = recompileBlock(name);
+		if (b.length > MAX_TRACE_CLASS_SIZE)
 			return null;
+		return define(name, b);
+	}
 
-		id = counter.incrementAndGet();
-		this.cpu = cpu;
-		b = recompileBlock(id, blockPhysicalAddress);
+	// Appends the instructions of a block at the given relative address
+	private void addCode(int[] code, int offset) {
+		for(int i = 0; i < code.length; i++) {
+			opcodes[length] = code[i];
+			addressOffsets[length] = offset + 4 * i;
+			continuations[length] = -1;
+			guards[length] = -1;
+			length++;
+		}
+	}
 
-		Class<?> clazz = defineClass("jmips.cpu.dynrec.Block_" + id, b, 0, b.length);
+	private RecompiledBlock define(String name, byte[] b) {
+		String className = name.replace('/', '.');
 
+		// The same block can be recompiled more than once (for example,
+		// when the cache names the classes after their instructions)
+		if (loader == null || numLoaded == BLOCKS_PER_LOADER || loader.isDefined(className)) {
+			pollCollectedLoaders();
+			loader = new BlockLoader();
+			loaderReference = new LoaderReference(loader);
+			numLoaded = 0;
+		}
+		Class<?> clazz = loader.define(className, b);
+		numLoaded++;
+		loaderReference.add(b.length);
+		numDefinedClasses.incrementAndGet();
+		definedClassBytes.addAndGet(b.length);
+		return instantiate(clazz, b.length);
+	}
+
+	private RecompiledBlock instantiate(Class<?> clazz, int codeSize) {
 		try {
-			return (RecompiledBlock) clazz.newInstance();
-		} catch (Exception ex) {
+			RecompiledBlock block = (RecompiledBlock) clazz.newInstance();
+			block.setLength(length);
+			block.setCodeSize(codeSize);
+			setCallInformation(block);
+			return block;
+		} catch (InstantiationException ex) {
+			ex.printStackTrace();
+			return null;
+		} catch (IllegalAccessException ex) {
 			ex.printStackTrace();
 			return null;
 		}
 	}
 
+	// Tells the engine whether the block ends with a call or a return,
+	// for the shadow stack of the return addresses
+	private void setCallInformation(RecompiledBlock block) {
+		int branch = length - 2;
+		if (branch < 0 || !isBranch(opcodes[branch]) || continuations[branch] >= 0)
+			return;
+		int opcode = opcodes[branch];
+		boolean call = false;
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			if (DECODE_FUNCT(opcode) == I_SPEC_JALR)
+				call = true;
+			else
+				block.setReturn(DECODE_RS(opcode) == GPR_RA);
+			break;
+		case I_REGIMM:
+			switch(DECODE_RT(opcode)) {
+			case I_REGIMM_BLTZAL:
+			case I_REGIMM_BGEZAL:
+			case I_REGIMM_BLTZALL:
+			case I_REGIMM_BGEZALL:
+				call = true;
+				break;
+			}
+			break;
+		case I_JAL:
+			call = true;
+			break;
+		}
+		if (call)
+			block.setReturnOffset(addressOffsets[branch] + 8);
+	}
+
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	public ClassCache getClassCache() {
+		return classCache;
+	}
+
+	// The classes shared with the other recompilers, or null to
+	// define new classes for the blocks of this one
+	public void setClassCache(ClassCache classCache) {
+		this.classCache = classCache;
+	}
+
+	public boolean isBigEndian() {
+		return bigEndian;
+	}
+
+	// The byte order of the cpu which will execute the blocks
+	public void setBigEndian(boolean bigEndian) {
+		this.bigEndian = bigEndian;
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	// The guest function of the code recompiled next (or null), which
+	// is added to the names of the classes so that the profilers show it
+	public void setSymbol(String symbol) {
+		this.symbol = symbol;
+	}
+
+	private String getSymbolSuffix() {
+		if (symbol == null)
+			return "";
+		StringBuilder sb = new StringBuilder("_");
+		for(int i = 0; i < symbol.length() && i < MAX_SYMBOL_LENGTH; i++) {
+			char c = symbol.charAt(i);
+			sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	public int getMode() {
+		return bigEndian ? 0 : MODE_LITTLE_ENDIAN;
+	}
+
+	// The cache with the classes of the blocks recompiled by previous runs,
+	// or null to always recompile the blocks
+	public void setBlockCache(BlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+
+	// Returns the instructions of the block starting at the physical
+	// address, or null if the first instruction can't be recompiled
+	public static int[] scanBlock(Cpu cpu, int blockPhysicalAddress) {
+		if (blockPhysicalAddress < 0 || blockPhysicalAddress >= cpu.getRam().getRamSize())
+			return null;
+
+		int available = (PAGE_SIZE - (blockPhysicalAddress & (PAGE_SIZE - 1))) >> 2;
+		int maxLength = Math.min(MAX_BLOCK_LENGTH, available);
+		int[] opcodes = new int[MAX_BLOCK_LENGTH + 1];
+		int length = 0;
+
+		while (length < maxLength) {
+			int opcode = cpu.load32phys(blockPhysicalAddress + 4 * length);
+			if (!isRecompilable(opcode))
+				break;
+
+			if (isBranch(opcode)) {
+				// The delay slot is allowed to go past the maximum length,
+				// but not past the end of the page
+				if (length + 1 >= available)
+					break;
+				int delaySlotOpcode = cpu.load32phys(blockPhysicalAddress + 4 * (length + 1));
+				if (!isRecompilable(delaySlotOpcode) || isBranch(delaySlotOpcode))
+					break;
+				opcodes[length] = opcode;
+				opcodes[length + 1] = delaySlotOpcode;
+				length += 2;
+				break;
+			}
+			opcodes[length++] = opcode;
+		}
+
+		if (length == 0)
+			return null;
+		int[] code = new int[length];
+		System.arraycopy(opcodes, 0, code, 0, length);
+		return code;
+	}
+
+	public static boolean isRecompilable(int opcode) {
+		switch(DECODE_OP(opcode)) {
+		case I_COP0:
+		case I_CACHE:
+			return false;
+		}
+		return true;
+	}
+
+	public static boolean isBranch(int opcode) {
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			switch(DECODE_FUNCT(opcode)) {
+			case I_SPEC_JR:
+			case I_SPEC_JALR:
+				return true;
+			}
+			return false;
+		case I_REGIMM:
+			switch(DECODE_RT(opcode)) {
+			case I_REGIMM_BLTZ:
+			case I_REGIMM_BGEZ:
+			case I_REGIMM_BLTZL:
+			case I_REGIMM_BGEZL:
+			case I_REGIMM_BLTZAL:
+			case I_REGIMM_BGEZAL:
+			case I_REGIMM_BLTZALL:
+			case I_REGIMM_BGEZALL:
+				return true;
+			}
+			return false;
+		case I_J:
+		case I_JAL:
+		case I_BEQ:
+		case I_BNE:
+		case I_BLEZ:
+		case I_BGTZ:
+		case I_BEQL:
+		case I_BNEL:
+		case I_BLEZL:
+		case I_BGTZL:
+			return true;
+		}
+		return false;
+	}
+
 	private void createConstructor(ClassWriter cw) {
 		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
 		mv.visitCode();
@@ -69,118 +461,470 @@ public class DynamicRecompiler extends ClassLoader {
 		mv.visitEnd();
 	}
 
-	private byte[] recompileBlock(int id, int blockPhysicalAddress) {
+	private byte[] recompileBlock(String name) {
+		optimizer.optimize(opcodes, addressOffsets, continuations, length);
+
+		analyzing = true;
+		usedRegisters = 0;
+		Arrays.fill(writtenRegisters, 0);
+		loops = false;
+		accessesMemory = false;
+		mv = new MethodVisitor(Opcodes.ASM4) {};
+		recompileMethod();
+
+		analyzing = false;
+		for(int i = 1; i < length; i++)
+			writtenRegisters[i] |= writtenRegisters[i - 1];
+		if (loops) {
+			// Any register written in the block might be dirty anywhere
+			Arrays.fill(writtenRegisters, 0, length, writtenRegisters[length - 1]);
+		}
+
 		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
 		cw.visit(Opcodes.V1_4, Opcodes.ACC_FINAL + Opcodes.ACC_PUBLIC,
-				"jmips/cpu/dynrec/Block_" + id, null,
+				name, null,
 				"jmips/cpu/dynrec/RecompiledBlock", null);
 		createConstructor(cw);
 
 		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "execute",
 				"(Ljmips/cpu/Cpu;I)I", null, null);
-		printer = new Textifier();
-		mv = new TraceMethodVisitor(mv, printer);
-		mv.visitCode();
+		recompileMethod();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
 
-		returnLabel = new Label();
+	private void recompileMethod() {
+		mv.visitCode();
 
-		labels = new Label[BLOCK_SIZE / 4];
-		int[] switchValues = new int[BLOCK_SIZE / 4];
-		for(int i = 0; i < BLOCK_SIZE / 4; i++) {
+		labels = new Label[length];
+		budgetExitLabels = new Label[length + 1];
+		requestedExitLabels = new Label[length];
+		interpretedExitLabels = new Label[length];
+		memoryFaultLabels = new Label[length];
+		sliceExitLabels = new Label[length];
+		sideExitLabels = new Label[length];
+		notTakenLabels = new Label[length];
+		for(int i = 0; i < length; i++)
 			labels[i] = new Label();
-			switchValues[i] = i;
-		}
+
+		// Nothing is executed unless the whole block fits in the budget
+		entryExitLabel = new Label();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_NUM_CYCLES);
+		pushConstant(length);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, entryExitLabel);
 
 		extractPc();
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_PC);
+		loadRegisters();
+		if (accessesMemory) {
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getRam", "()Ljmips/cpu/Ram;");
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Ram", "getMemory", "()[I");
+			mv.visitVarInsn(Opcodes.ASTORE, VAR_MEMORY);
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "clearExitRequest", "()V");
+		}
+
+		boolean endsWithBranch = false;
+		for(index = 0; index < length; index++) {
+			int opcode = opcodes[index];
+			delaySlot = false;
+			mv.visitLabel(labels[index]);
+			if (guards[index] >= 0)
+				checkPage();
+
+			if (isBranch(opcode)) {
+				// The branch and its delay slot are executed together
+				int branch = index;
+				recompileBranch(opcode);
+				if (continuations[branch] < 0) {
+					endsWithBranch = true;
+					break;
+				}
+				continue;
+			}
+			recompileInstruction(opcode);
+		}
 
+		if (!endsWithBranch) {
+			pushAddress(length);
+			exitTo(length, dirtyRegisters(length), RecompiledBlock.LINK_NEXT);
+		}
+
+		mv.visitLabel(entryExitLabel);
+		setExitLink(RecompiledBlock.LINK_NONE);
 		mv.visitVarInsn(Opcodes.ILOAD, VAR_NUM_CYCLES);
-		mv.visitJumpInsn(Opcodes.IFLE, returnLabel);
+		mv.visitInsn(Opcodes.IRETURN);
 
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
-		mv.visitLdcInsn(2);
-		mv.visitInsn(Opcodes.ISHR);
-		mv.visitLdcInsn(0x03FF);
-		mv.visitInsn(Opcodes.IAND);
+		// The branches of the trace which went somewhere else
+		for(int i = 0; i < length; i++) {
+			if (sideExitLabels[i] != null) {
+				mv.visitLabel(sideExitLabels[i]);
+				mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+				exitTo(i + 2, dirtyRegisters(i + 2), RecompiledBlock.LINK_NONE);
+			}
+			if (notTakenLabels[i] != null) {
+				mv.visitLabel(notTakenLabels[i]);
+				if (addressOffsets[continuations[i]] == addressOffsets[i] + 8) {
+					// The delay slot is skipped
+					mv.visitIincInsn(VAR_NUM_CYCLES, 1);
+					if (continuations[i] <= i)
+						jumpBack(continuations[i], i + 2);
+					else
+						mv.visitJumpInsn(Opcodes.GOTO, labels[continuations[i]]);
+				} else {
+					pushAddressAfter(i);
+					exitTo(i + 1, dirtyRegisters(i + 1), RecompiledBlock.LINK_NONE);
+				}
+			}
+		}
 
-		mv.visitLookupSwitchInsn(returnLabel, switchValues, labels);
-		for(int i = 0; i < BLOCK_SIZE / 4; i++) {
-			int physicalAddress = blockPhysicalAddress + 4 * i;
-			int opcode = cpu.load32phys(physicalAddress);
-			mv.visitLabel(labels[i]);
-			appendText("    // 0x%08X: 0x%08X %s\n", physicalAddress, opcode, Mips.disassemble(opcode, physicalAddress));
-			recompileInstruction(opcode);
+		for(int i = 0; i < length; i++) {
+			if (budgetExitLabels[i] != null) {
+				mv.visitLabel(budgetExitLabels[i]);
+				pushAddress(i);
+				exitTo(i, dirtyRegisters(i), RecompiledBlock.LINK_NONE);
+			}
 		}
 
-		mv.visitLabel(returnLabel);
+		// The pc was already set by the instruction (or by the exception)
+		for(int i = 0; i < length; i++) {
+			if (requestedExitLabels[i] != null) {
+				mv.visitLabel(requestedExitLabels[i]);
+				extractPc();
+				exitTo(i + 1, dirtyRegisters(i + 1), RecompiledBlock.LINK_NONE);
+			}
+			if (interpretedExitLabels[i] != null) {
+				mv.visitLabel(interpretedExitLabels[i]);
+				extractPc();
+				exitTo(i + 1, 0, RecompiledBlock.LINK_NONE);
+			}
+		}
 
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
-		updatePc();
+		// The state of the cpu is only made consistent when the memory
+		// accesses fail or end the slice, from what is known statically
+		// about the instruction
+		for(int i = 0; i < length; i++) {
+			index = i;
+			delaySlot = i > 0 && isBranch(opcodes[i - 1]);
+			if (memoryFaultLabels[i] != null) {
+				mv.visitLabel(memoryFaultLabels[i]);
+				storeRegisters(dirtyRegisters(i));
+				enterInstruction();
+				mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+				mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "raiseMemoryException", "(I)V");
+				extractPc();
+				exitTo(i + 1, 0, RecompiledBlock.LINK_NONE);
+			}
+			if (sliceExitLabels[i] != null) {
+				mv.visitLabel(sliceExitLabels[i]);
+				if (delaySlot) {
+					mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+				} else {
+					mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
+					pushConstant(addressOffsets[i] + 4);
+					mv.visitInsn(Opcodes.IADD);
+				}
+				exitTo(i + 1, dirtyRegisters(i + 1), RecompiledBlock.LINK_NONE);
+			}
+		}
 
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_NUM_CYCLES);
-		mv.visitInsn(Opcodes.IRETURN);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
+	}
 
-		StringWriter sw = new StringWriter();
-		printer.print(new PrintWriter(sw));
-		System.out.println(sw.toString());
-		cw.visitEnd();
-		return cw.toByteArray();
+	// The registers which might have been modified by the
+	// instructions before the given one
+	private long dirtyRegisters(int position) {
+		if (position == 0)
+			return loops ? writtenRegisters[0] : 0;
+		return writtenRegisters[position - 1];
 	}
 
-	private void appendText(String format, Object... args) {
-		@SuppressWarnings("unchecked")
-		List<String> text = (List<String>) printer.text;
-		text.add(String.format(format, args));
+	private void loadRegisters() {
+		for(int reg = 1; reg < 32; reg++) {
+			if ((usedRegisters & (1L << reg)) != 0) {
+				mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+				pushConstant(reg);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getGpr", "(I)I");
+				mv.visitVarInsn(Opcodes.ISTORE, VAR_GPR + reg);
+			}
+		}
+		if ((usedRegisters & MASK_HI) != 0) {
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getHi", "()I");
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_HI);
+		}
+		if ((usedRegisters & MASK_LO) != 0) {
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getLo", "()I");
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_LO);
+		}
 	}
 
-	private void extractPc() {
+	// Writes the registers back to the cpu
+	private void storeRegisters(long mask) {
+		for(int reg = 1; reg < 32; reg++) {
+			if ((mask & (1L << reg)) != 0) {
+				mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+				pushConstant(reg);
+				mv.visitVarInsn(Opcodes.ILOAD, VAR_GPR + reg);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "setGpr", "(II)V");
+			}
+		}
+		if ((mask & MASK_HI) != 0) {
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_HI);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "setHi", "(I)V");
+		}
+		if ((mask & MASK_LO) != 0) {
+			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_LO);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "setLo", "(I)V");
+		}
+	}
+
+	// Leaves the block at the position if there are not enough cycles
+	// to get to its end again
+	private void checkBudget(int position) {
+		Label label = budgetExitLabels[position];
+		if (label == null) {
+			label = new Label();
+			budgetExitLabels[position] = label;
+		}
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_NUM_CYCLES);
+		pushConstant(length);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, label);
+	}
+
+	// Leaves the trace at the instruction if its page is no longer
+	// mapped to the physical page seen when the trace was recorded
+	private void checkPage() {
+		Label label = budgetExitLabels[index];
+		if (label == null) {
+			label = new Label();
+			budgetExitLabels[index] = label;
+		}
 		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
-		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cpu", "getPc", "()I");
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getCop0", "()Ljmips/cpu/Cop0;");
+		pushAddress(index);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cop0", "translateFetch", "(I)I");
+		pushConstant(guards[index]);
+		mv.visitJumpInsn(Opcodes.IF_ICMPNE, label);
 	}
 
-	private void updatePc() {
+	private void setExitLink(int link) {
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		pushConstant(link);
+		mv.visitFieldInsn(Opcodes.PUTFIELD, "jmips/cpu/dynrec/RecompiledBlock", "exitLink", "I");
+	}
+
+	// Writes back the registers, sets the pc (on the stack)
+	// and returns the remaining cycles
+	private void exitTo(int executed, long dirty, int link) {
+		storeRegisters(dirty);
+		setExitLink(link);
 		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
-		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cpu", "setPc", "(I)");
+		mv.visitInsn(Opcodes.SWAP);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "setPc", "(I)V");
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_NUM_CYCLES);
+		pushConstant(executed);
+		mv.visitInsn(Opcodes.ISUB);
+		mv.visitInsn(Opcodes.IRETURN);
+	}
+
+	private Label requestedExit() {
+		Label label = requestedExitLabels[index];
+		if (label == null) {
+			label = new Label();
+			requestedExitLabels[index] = label;
+		}
+		return label;
+	}
+
+	// Like the requested exit, for when the registers were already written back
+	private Label interpretedExit() {
+		Label label = interpretedExitLabels[index];
+		if (label == null) {
+			label = new Label();
+			interpretedExitLabels[index] = label;
+		}
+		return label;
+	}
+
+	private void pushConstant(int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+
+	// Pushes the virtual address of the given instruction of the block
+	private void pushAddress(int position) {
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
+		if (addressOffsets[position] != 0) {
+			pushConstant(addressOffsets[position]);
+			mv.visitInsn(Opcodes.IADD);
+		}
+	}
+
+	// Pushes the virtual address of the instruction after the delay slot
+	// of the branch (which is not the next position in the traces)
+	private void pushAddressAfter(int branch) {
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
+		pushConstant(addressOffsets[branch] + 8);
+		mv.visitInsn(Opcodes.IADD);
+	}
+
+	private void pushNextAddress() {
+		if (delaySlot) {
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+		} else {
+			pushAddress(index + 1);
+		}
+	}
+
+	// Makes the state of the cpu consistent, for the operations
+	// which may raise exceptions
+	private void enterInstruction() {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		pushAddress(index);
+		pushNextAddress();
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "enterInstruction", "(II)V");
+	}
+
+	private void checkExitRequested() {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "isExitRequested", "()Z");
+		mv.visitJumpInsn(Opcodes.IFNE, requestedExit());
+	}
+
+	private void checkMemoryError() {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getLastMemoryError", "()I");
+		mv.visitJumpInsn(Opcodes.IFNE, requestedExit());
+	}
+
+	// Like checkMemoryError, for the accesses made without enterInstruction
+	// (the exception is raised by the fault stub of the instruction, for
+	// the address in the first temporary)
+	private void checkMemoryFault() {
+		Label label = memoryFaultLabels[index];
+		if (label == null) {
+			label = new Label();
+			memoryFaultLabels[index] = label;
+		}
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getLastMemoryError", "()I");
+		mv.visitJumpInsn(Opcodes.IFNE, label);
+	}
+
+	// Leaves the block after the instruction if the access ended the slice
+	private void checkSliceEnd() {
+		Label label = sliceExitLabels[index];
+		if (label == null) {
+			label = new Label();
+			sliceExitLabels[index] = label;
+		}
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "isExitRequested", "()Z");
+		mv.visitJumpInsn(Opcodes.IFNE, label);
+	}
+
+	// Leaves the instruction to the interpreter, which takes care of
+	// raising the exceptions
+	private void interpret(int opcode) {
+		storeRegisters(dirtyRegisters(index));
+		enterInstruction();
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		pushConstant(opcode);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "stepInstruction", "(I)V");
+		mv.visitJumpInsn(Opcodes.GOTO, interpretedExit());
+	}
+
+	private void extractPc() {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "getPc", "()I");
 	}
 
 	private void extractGpr(int reg) {
-		if (reg == 0) {
-			mv.visitInsn(Opcodes.ICONST_0);
+		if (optimizer.isKnown(index, reg)) {
+			pushConstant(optimizer.getValue(index, reg));
 		} else {
-			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
-			mv.visitLdcInsn(reg);
-			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cpu", "getGpr", "(I)I");
+			if (analyzing) usedRegisters |= 1L << reg;
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_GPR + reg);
 		}
 	}
 
 	private void updateGpr(int reg) {
 		if (reg == 0) {
+			mv.visitInsn(Opcodes.POP);
 		} else {
-			mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
-			mv.visitInsn(Opcodes.SWAP);
-			mv.visitLdcInsn(reg);
-			mv.visitInsn(Opcodes.SWAP);
-			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cpu", "setGpr", "(II)V");
+			if (analyzing) markWritten(1L << reg);
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_GPR + reg);
 		}
 	}
 
+	private void markWritten(long mask) {
+		// Written registers are also loaded, since the write might not
+		// happen before the block is left
+		usedRegisters |= mask;
+		writtenRegisters[index] |= mask;
+	}
 
-	private void callCheckOverflow(boolean sum) {
-		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
-		mv.visitLdcInsn(sum);
-		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "jmips/cpu/Cpu", "checkOverflow", "(IIIZ)Z");
+	private void extractHi() {
+		if (analyzing) usedRegisters |= MASK_HI;
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_HI);
+	}
+
+	private void extractLo() {
+		if (analyzing) usedRegisters |= MASK_LO;
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_LO);
+	}
 
-		Label notOverflowLabel = new Label();
-		mv.visitJumpInsn(Opcodes.IFEQ, notOverflowLabel);
+	private void updateHi() {
+		if (analyzing) markWritten(MASK_HI);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_HI);
+	}
+
+	private void updateLo() {
+		if (analyzing) markWritten(MASK_LO);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_LO);
+	}
 
-		// TODO: Call overflow
+	// Splits the long on the stack into HI and LO
+	private void updateHiLo() {
+		mv.visitInsn(Opcodes.DUP2);
+		mv.visitInsn(Opcodes.L2I);
+		updateLo();
+		mv.visitIntInsn(Opcodes.BIPUSH, 32);
+		mv.visitInsn(Opcodes.LSHR);
+		mv.visitInsn(Opcodes.L2I);
+		updateHi();
+	}
 
-		mv.visitLabel(notOverflowLabel);
+	private void extractHiLo() {
+		extractHi();
+		mv.visitInsn(Opcodes.I2L);
+		mv.visitIntInsn(Opcodes.BIPUSH, 32);
+		mv.visitInsn(Opcodes.LSHL);
+		extractLo();
+		extractUnsigned();
+		mv.visitInsn(Opcodes.LOR);
+	}
+
+	// Zero extends the integer on the stack to a long
+	private void extractUnsigned() {
+		mv.visitInsn(Opcodes.I2L);
+		mv.visitLdcInsn(0xFFFFFFFFL);
+		mv.visitInsn(Opcodes.LAND);
 	}
 
 	private void setOnCondition(int opcodeCondition) {
@@ -194,16 +938,211 @@ public class DynamicRecompiler extends ClassLoader {
 		mv.visitLabel(endLabel);
 	}
 
+	private void compareUnsigned() {
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jmips/cpu/Helper", "compareUnsigned", "(II)I");
+	}
+
+	// Returns the position of the instruction at the relative address, up
+	// to the given position, where the code can jump to (so not a delay
+	// slot), or -1 if there is none
+	private int findPosition(int offset, int last) {
+		for(int i = 0; i <= last; i++) {
+			if (addressOffsets[i] == offset && (i == 0 || !isBranch(opcodes[i - 1])))
+				return i;
+		}
+		return -1;
+	}
+
+	// Jumps back to an earlier position. The number of cycles is adjusted
+	// so that the checks still work.
+	private void jumpBack(int position, int from) {
+		loops = true;
+		mv.visitIincInsn(VAR_NUM_CYCLES, position - from);
+		checkBudget(position);
+		mv.visitJumpInsn(Opcodes.GOTO, labels[position]);
+	}
+
+	private void recompileBranch(int opcode) {
+		int branch = index;
+		int rs = DECODE_RS(opcode);
+		int rt = DECODE_RT(opcode);
+		int offset = addressOffsets[branch] + 4 + 4 * DECODE_IMM16(opcode);
+		int condition = -1; // The jump opcode which tests if the branch is taken
+		boolean likely = false;
+		boolean link = false;
+		boolean relative = true;
+
+		switch(DECODE_OP(opcode)) {
+		case I_SPECIAL:
+			relative = false;
+			if (DECODE_FUNCT(opcode) == I_SPEC_JALR)
+				link(DECODE_RD(opcode));
+			if (DECODE_FUNCT(opcode) == I_SPEC_JALR && DECODE_RD(opcode) == rs && rs != 0) {
+				// As in the interpreter, the register is read after the link
+				pushAddressAfter(branch);
+			} else {
+				extractGpr(rs);
+			}
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_TARGET);
+			break;
+		case I_REGIMM:
+			switch(rt) {
+			case I_REGIMM_BLTZ:    condition = Opcodes.IFLT; break;
+			case I_REGIMM_BGEZ:    condition = Opcodes.IFGE; break;
+			case I_REGIMM_BLTZL:   condition = Opcodes.IFLT; likely = true; break;
+			case I_REGIMM_BGEZL:   condition = Opcodes.IFGE; likely = true; break;
+			case I_REGIMM_BLTZAL:  condition = Opcodes.IFLT; link = true; break;
+			case I_REGIMM_BGEZAL:  condition = Opcodes.IFGE; link = true; break;
+			case I_REGIMM_BLTZALL: condition = Opcodes.IFLT; likely = true; link = true; break;
+			case I_REGIMM_BGEZALL: condition = Opcodes.IFGE; likely = true; link = true; break;
+			}
+			extractGpr(rs);
+			if (link) {
+				// The register is read before the link
+				mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
+				link(GPR_RA);
+				mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+			}
+			break;
+		case I_J:
+		case I_JAL:
+			relative = false;
+			if (DECODE_OP(opcode) == I_JAL)
+				link(GPR_RA);
+			pushAddress(branch + 1);
+			mv.visitLdcInsn(0xF0000000);
+			mv.visitInsn(Opcodes.IAND);
+			pushConstant((opcode & 0x3FFFFFF) << 2);
+			mv.visitInsn(Opcodes.IOR);
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_TARGET);
+			break;
+		case I_BEQ:   condition = Opcodes.IF_ICMPEQ; break;
+		case I_BNE:   condition = Opcodes.IF_ICMPNE; break;
+		case I_BLEZ:  condition = Opcodes.IFLE; break;
+		case I_BGTZ:  condition = Opcodes.IFGT; break;
+		case I_BEQL:  condition = Opcodes.IF_ICMPEQ; likely = true; break;
+		case I_BNEL:  condition = Opcodes.IF_ICMPNE; likely = true; break;
+		case I_BLEZL: condition = Opcodes.IFLE; likely = true; break;
+		case I_BGTZL: condition = Opcodes.IFGT; likely = true; break;
+		}
+
+		switch(condition) {
+		case Opcodes.IF_ICMPEQ:
+		case Opcodes.IF_ICMPNE:
+			extractGpr(rs);
+			extractGpr(rt);
+			break;
+		case Opcodes.IFLE:
+		case Opcodes.IFGT:
+			extractGpr(rs);
+			break;
+		}
+
+		Label notTakenLabel = new Label();
+		if (relative) {
+			Label takenLabel = new Label();
+			Label delaySlotLabel = new Label();
+
+			if (likely) {
+				mv.visitJumpInsn(invertCondition(condition), notTakenLabel);
+			} else {
+				mv.visitJumpInsn(condition, takenLabel);
+				pushAddressAfter(branch);
+				mv.visitVarInsn(Opcodes.ISTORE, VAR_TARGET);
+				mv.visitJumpInsn(Opcodes.GOTO, delaySlotLabel);
+				mv.visitLabel(takenLabel);
+			}
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_PC);
+			pushConstant(offset);
+			mv.visitInsn(Opcodes.IADD);
+			mv.visitVarInsn(Opcodes.ISTORE, VAR_TARGET);
+			mv.visitLabel(delaySlotLabel);
+		}
+
+		index = branch + 1;
+		delaySlot = true;
+		recompileInstruction(opcodes[index]);
+
+		int continuation = continuations[branch];
+		int loopStart = relative ? findPosition(offset, branch) : -1;
+		if (loopStart >= 0 && loopStart != continuation) {
+			// Branches back into the block become loops
+			Label exitLabel = new Label();
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+			pushAddress(loopStart);
+			mv.visitJumpInsn(Opcodes.IF_ICMPNE, exitLabel);
+			jumpBack(loopStart, branch + 2);
+			mv.visitLabel(exitLabel);
+		}
+
+		if (continuation >= 0) {
+			// The trace goes on only where the branch went when it was recorded
+			sideExitLabels[branch] = new Label();
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+			pushAddress(continuation);
+			mv.visitJumpInsn(Opcodes.IF_ICMPNE, sideExitLabels[branch]);
+			if (continuation <= branch)
+				jumpBack(continuation, branch + 2);
+			if (likely)
+				notTakenLabels[branch] = notTakenLabel;
+			return;
+		}
+
+		if (relative && !likely) {
+			Label takenExitLabel = new Label();
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+			pushAddressAfter(branch);
+			mv.visitJumpInsn(Opcodes.IF_ICMPNE, takenExitLabel);
+			pushAddressAfter(branch);
+			exitTo(branch + 2, dirtyRegisters(branch + 2), RecompiledBlock.LINK_NEXT);
+			mv.visitLabel(takenExitLabel);
+		}
+
+		// The targets of the jumps to registers are only known at runtime
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TARGET);
+		exitTo(branch + 2, dirtyRegisters(branch + 2),
+				(DECODE_OP(opcode) == I_SPECIAL) ? RecompiledBlock.LINK_DYNAMIC : RecompiledBlock.LINK_TARGET);
+
+		if (likely) {
+			// The delay slot is not executed
+			mv.visitLabel(notTakenLabel);
+			pushAddressAfter(branch);
+			exitTo(branch + 1, dirtyRegisters(branch + 1), RecompiledBlock.LINK_NEXT);
+		}
+	}
+
+	private static int invertCondition(int condition) {
+		switch(condition) {
+		case Opcodes.IF_ICMPEQ: return Opcodes.IF_ICMPNE;
+		case Opcodes.IF_ICMPNE: return Opcodes.IF_ICMPEQ;
+		case Opcodes.IFLT: return Opcodes.IFGE;
+		case Opcodes.IFGE: return Opcodes.IFLT;
+		case Opcodes.IFLE: return Opcodes.IFGT;
+		case Opcodes.IFGT: return Opcodes.IFLE;
+		case Opcodes.IF_ICMPLT: return Opcodes.IF_ICMPGE;
+		case Opcodes.IF_ICMPGE: return Opcodes.IF_ICMPLT;
+		}
+		throw new IllegalArgumentException("Invalid condition");
+	}
+
+	private void link(int reg) {
+		pushAddressAfter(index);
+		updateGpr(reg);
+	}
+
 	private void recompileInstruction(int opcode) {
+		if (optimizer.isDead(index))
+			return;
+		if (optimizer.isFolded(index)) {
+			pushConstant(optimizer.getResult(index));
+			updateGpr((DECODE_OP(opcode) == I_SPECIAL || DECODE_OP(opcode) == I_SPECIAL2)
+					? DECODE_RD(opcode) : DECODE_RT(opcode));
+			return;
+		}
+
 		switch (DECODE_OP(opcode)) {
 		case I_SPECIAL: recompileSpecial(opcode); break;
 		case I_REGIMM:  recompileRegImm(opcode); break;
-		case I_J:       j(opcode); break;
-		case I_JAL:     jal(opcode); break;
-		case I_BEQ:     beq(opcode); break;
-		case I_BNE:     bne(opcode); break;
-		case I_BLEZ:    blez(opcode); break;
-		case I_BGTZ:    bgtz(opcode); break;
 
 		case I_ADDI:    addi(opcode); break;
 		case I_ADDIU:   addiu(opcode); break;
@@ -214,15 +1153,6 @@ public class DynamicRecompiler extends ClassLoader {
 		case I_XORI:    xori(opcode); break;
 		case I_LUI:     lui(opcode); break;
 
-		case I_COP0:    recompileCop0(opcode); break;
-		case I_COP1:    invalid(1); break;
-		case I_COP2:    invalid(2); break;
-		case I_COP1X:   invalid(1); break;
-		case I_BEQL:    beql(opcode); break;
-		case I_BNEL:    bnel(opcode); break;
-		case I_BLEZL:   blezl(opcode); break;
-		case I_BGTZL:   bgtzl(opcode); break;
-
 		case I_SPECIAL2: recompileSpecial2(opcode); break;
 
 		case I_LB:      lb(opcode); break;
@@ -238,28 +1168,20 @@ public class DynamicRecompiler extends ClassLoader {
 		case I_SWL:     swl(opcode); break;
 		case I_SW:      sw(opcode); break;
 		case I_SWR:     swr(opcode); break;
-		case I_CACHE:   cache(opcode); break;
 
 		case I_LL:      ll(opcode); break;
-		case I_LWC1:    invalid(1); break;
-		case I_LWC2:    invalid(2); break;
-		case I_PREF:    pref(opcode); break;
-		case I_LDC1:    invalid(1); break;
-		case I_LDC2:    invalid(2); break;
-
+		case I_PREF:    break;
 		case I_SC:      sc(opcode); break;
-		case I_SWC1:    invalid(1); break;
-		case I_SWC2:    invalid(2); break;
-		case I_SDC1:    invalid(1); break;
-		case I_SDC2:    invalid(2); break;
-		default: reserved(); break;
+
+		// The coprocessor instructions, the reserved instructions
+		// and whatever ends up here only raise exceptions
+		default: interpret(opcode); break;
 		}
 	}
 
 	private void recompileSpecial(int opcode) {
 		switch(DECODE_FUNCT(opcode)) {
 		case I_SPEC_SLL:     sll(opcode); break;
-		case I_SPEC_COP1:    invalid(1); break;
 
 		case I_SPEC_SRL:     srl(opcode); break;
 		case I_SPEC_SRA:     sra(opcode); break;
@@ -267,13 +1189,9 @@ public class DynamicRecompiler extends ClassLoader {
 		case I_SPEC_SRLV:    srlv(opcode); break;
 		case I_SPEC_SRAV:    srav(opcode); break;
 
-		case I_SPEC_JR:      jr(opcode); break;
-		case I_SPEC_JALR:    jalr(opcode); break;
 		case I_SPEC_MOVZ:    movz(opcode); break;
 		case I_SPEC_MOVN:    movn(opcode); break;
-		case I_SPEC_SYSCALL: syscall(opcode); break;
-		case I_SPEC_BREAK:   break_(opcode); break;
-		case I_SPEC_SYNC:    sync(opcode); break;
+		case I_SPEC_SYNC:    break;
 
 		case I_SPEC_MFHI:    mfhi(opcode); break;
 		case I_SPEC_MTHI:    mthi(opcode); break;
@@ -285,9 +1203,21 @@ public class DynamicRecompiler extends ClassLoader {
 		case I_SPEC_DIV:     div(opcode); break;
 		case I_SPEC_DIVU:    divu(opcode); break;
 
-		case I_SPEC_ADD:     add(opcode); break;
+		case I_SPEC_ADD:
+			if (optimizer.isKnown(index, DECODE_RT(opcode)))
+				addConstant(opcode, DECODE_RS(opcode), getKnown(DECODE_RT(opcode)), DECODE_RD(opcode));
+			else if (optimizer.isKnown(index, DECODE_RS(opcode)))
+				addConstant(opcode, DECODE_RT(opcode), getKnown(DECODE_RS(opcode)), DECODE_RD(opcode));
+			else
+				add(opcode);
+			break;
 		case I_SPEC_ADDU:    addu(opcode); break;
-		case I_SPEC_SUB:     sub(opcode); break;
+		case I_SPEC_SUB:
+			if (optimizer.isKnown(index, DECODE_RT(opcode)) && getKnown(DECODE_RT(opcode)) != Integer.MIN_VALUE)
+				addConstant(opcode, DECODE_RS(opcode), -getKnown(DECODE_RT(opcode)), DECODE_RD(opcode));
+			else
+				sub(opcode);
+			break;
 		case I_SPEC_SUBU:    subu(opcode); break;
 		case I_SPEC_AND:     and(opcode); break;
 		case I_SPEC_OR:      or(opcode); break;
@@ -297,113 +1227,158 @@ public class DynamicRecompiler extends ClassLoader {
 		case I_SPEC_SLT:     slt(opcode); break;
 		case I_SPEC_SLTU:    sltu(opcode); break;
 
-		case I_SPEC_TGE:     tge(opcode); break;
-		case I_SPEC_TGEU:    tgeu(opcode); break;
-		case I_SPEC_TLT:     tlt(opcode); break;
-		case I_SPEC_TLTU:    tltu(opcode); break;
-		case I_SPEC_TEQ:     teq(opcode); break;
-		case I_SPEC_TNE:     tne(opcode); break;
+		case I_SPEC_TGE:     trap(opcode, Opcodes.IF_ICMPGE, false); break;
+		case I_SPEC_TGEU:    trap(opcode, Opcodes.IFGE, true); break;
+		case I_SPEC_TLT:     trap(opcode, Opcodes.IF_ICMPLT, false); break;
+		case I_SPEC_TLTU:    trap(opcode, Opcodes.IFLT, true); break;
+		case I_SPEC_TEQ:     trap(opcode, Opcodes.IF_ICMPEQ, false); break;
+		case I_SPEC_TNE:     trap(opcode, Opcodes.IF_ICMPNE, false); break;
 
-		default: reserved(); break;
+		// SYSCALL, BREAK and the reserved instructions
+		default: interpret(opcode); break;
 		}
 	}
 
 	private void recompileSpecial2(int opcode) {
 		switch(DECODE_FUNCT(opcode)) {
-		case I_SPEC2_MADD:  madd(opcode); break;
-		case I_SPEC2_MADDU: maddu(opcode); break;
+		case I_SPEC2_MADD:  madd(opcode, false, false); break;
+		case I_SPEC2_MADDU: madd(opcode, true, false); break;
 		case I_SPEC2_MUL:   mul(opcode); break;
-		case I_SPEC2_MSUB:  msub(opcode); break;
-		case I_SPEC2_MSUBU: msubu(opcode); break;
+		case I_SPEC2_MSUB:  madd(opcode, false, true); break;
+		case I_SPEC2_MSUBU: madd(opcode, true, true); break;
 		case I_SPEC2_CLZ:   clz(opcode); break;
 		case I_SPEC2_CLO:   clo(opcode); break;
-		case I_SPEC2_SDBBP: sdbbp(opcode); break;
-		default: reserved(); break;
+		default: interpret(opcode); break;
 		}
 	}
 
 	private void recompileRegImm(int opcode) {
 		switch(DECODE_RT(opcode)) {
-		case I_REGIMM_BLTZ:    bltz(opcode); break;
-		case I_REGIMM_BGEZ:    bgez(opcode); break;
-		case I_REGIMM_BLTZL:   bltzl(opcode); break;
-		case I_REGIMM_BGEZL:   bgezl(opcode); break;
-		case I_REGIMM_TGEI:    tgei(opcode); break;
-		case I_REGIMM_TGEIU:   tgeiu(opcode); break;
-		case I_REGIMM_TLTI:    tlti(opcode); break;
-		case I_REGIMM_TLTIU:   tltiu(opcode); break;
-		case I_REGIMM_TEQI:    teqi(opcode); break;
-		case I_REGIMM_TNEI:    tnei(opcode); break;
-		case I_REGIMM_BLTZAL:  bltzal(opcode); break;
-		case I_REGIMM_BGEZAL:  bgezal(opcode); break;
-		case I_REGIMM_BLTZALL: bltzall(opcode); break;
-		case I_REGIMM_BGEZALL: bgezall(opcode); break;
-		default: reserved(); break;
-		}
-	}
-
-	private void recompileCop0(int opcode) {
-		int rs = DECODE_RS(opcode);
-		switch(rs) {
-		case I_COP0_MFC0: mfc0(opcode); break;
-		case I_COP0_MTC0: mtc0(opcode); break;
-		default:
-			if (rs >= I_COP0_CO_MIN && rs <= I_COP0_CO_MAX)
-				recompileCop0Co(opcode);
-			else
-				reserved();
-			break;
-		}
-	}
-
-	private void recompileCop0Co(int opcode) {
-		switch(DECODE_FUNCT(opcode)) {
-		case I_COP0CO_TLBR:  tlbr(opcode); break;
-		case I_COP0CO_TLBWI: tlbwi(opcode); break;
-		case I_COP0CO_TLBWR: tlbwr(opcode); break;
-		case I_COP0CO_TLBP:  tlbp(opcode); break;
-		case I_COP0CO_ERET:  eret(opcode); break;
-		case I_COP0CO_DERET: deret(opcode); break;
-		case I_COP0CO_WAIT:  wait(opcode); break;
-		default: reserved(); break;
+		case I_REGIMM_TGEI:    trapImmediate(opcode, Opcodes.IF_ICMPGE, false); break;
+		case I_REGIMM_TGEIU:   trapImmediate(opcode, Opcodes.IFGE, true); break;
+		case I_REGIMM_TLTI:    trapImmediate(opcode, Opcodes.IF_ICMPLT, false); break;
+		case I_REGIMM_TLTIU:   trapImmediate(opcode, Opcodes.IFLT, true); break;
+		case I_REGIMM_TEQI:    trapImmediate(opcode, Opcodes.IF_ICMPEQ, false); break;
+		case I_REGIMM_TNEI:    trapImmediate(opcode, Opcodes.IF_ICMPNE, false); break;
+		default: interpret(opcode); break;
 		}
 	}
 
 	private void add(int opcode) {
 		extractGpr(DECODE_RS(opcode));
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
 		extractGpr(DECODE_RT(opcode));
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
 		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
 		mv.visitInsn(Opcodes.IADD);
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER3);
 
-		callCheckOverflow(true);
+		checkOverflow(opcode, true);
 
 		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
 		updateGpr(DECODE_RD(opcode));
 	}
 
 	private void addi(int opcode) {
+		addConstant(opcode, DECODE_RS(opcode), DECODE_IMM16(opcode), DECODE_RT(opcode));
+	}
+
+	// Adds a constant to the register, where the overflow only needs
+	// a comparison of the register with a bound
+	private void addConstant(int opcode, int reg, int value, int destination) {
+		Label noOverflowLabel = new Label();
+		if (value != 0) {
+			extractGpr(reg);
+			if (value > 0) {
+				pushConstant(Integer.MAX_VALUE - value);
+				mv.visitJumpInsn(Opcodes.IF_ICMPLE, noOverflowLabel);
+			} else {
+				pushConstant(Integer.MIN_VALUE - value);
+				mv.visitJumpInsn(Opcodes.IF_ICMPGE, noOverflowLabel);
+			}
+			interpret(opcode);
+			mv.visitLabel(noOverflowLabel);
+		}
+		extractGpr(reg);
+		if (value != 0) {
+			pushConstant(value);
+			mv.visitInsn(Opcodes.IADD);
+		}
+		updateGpr(destination);
+	}
+
+	private int getKnown(int reg) {
+		return optimizer.getValue(index, reg);
+	}
+
+	private void sub(int opcode) {
 		extractGpr(DECODE_RS(opcode));
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
-		mv.visitLdcInsn(DECODE_IMM16(opcode));
+		extractGpr(DECODE_RT(opcode));
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
 		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
-		mv.visitInsn(Opcodes.IADD);
+		mv.visitInsn(Opcodes.ISUB);
 		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER3);
 
-		callCheckOverflow(true);
+		checkOverflow(opcode, false);
 
 		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
-		updateGpr(DECODE_RT(opcode));
+		updateGpr(DECODE_RD(opcode));
+	}
+
+	// The operands are in the first two temporaries, and the result in the third.
+	// On overflow the interpreter raises the exception.
+	private void checkOverflow(int opcode, boolean sum) {
+		Label noOverflowLabel = new Label();
+		if (sum) {
+			// Both operands have a sign different from the result
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
+			mv.visitInsn(Opcodes.IXOR);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
+			mv.visitInsn(Opcodes.IXOR);
+		} else {
+			// The operands have different signs, and the result
+			// doesn't have the sign of the first operand
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+			mv.visitInsn(Opcodes.IXOR);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
+			mv.visitInsn(Opcodes.IXOR);
+		}
+		mv.visitInsn(Opcodes.IAND);
+		mv.visitJumpInsn(Opcodes.IFGE, noOverflowLabel);
+		interpret(opcode);
+		mv.visitLabel(noOverflowLabel);
+	}
+
+	private void trap(int opcode, int condition, boolean unsigned) {
+		extractGpr(DECODE_RS(opcode));
+		extractGpr(DECODE_RT(opcode));
+		trapOnCondition(opcode, condition, unsigned);
+	}
+
+	private void trapImmediate(int opcode, int condition, boolean unsigned) {
+		extractGpr(DECODE_RS(opcode));
+		pushConstant(DECODE_IMM16(opcode));
+		trapOnCondition(opcode, condition, unsigned);
+	}
+
+	private void trapOnCondition(int opcode, int condition, boolean unsigned) {
+		Label noTrapLabel = new Label();
+		if (unsigned) compareUnsigned();
+		mv.visitJumpInsn(invertCondition(condition), noTrapLabel);
+		interpret(opcode);
+		mv.visitLabel(noTrapLabel);
 	}
 
 	private void addiu(int opcode) {
 		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16(opcode));
+		pushConstant(DECODE_IMM16(opcode));
 		mv.visitInsn(Opcodes.IADD);
 		updateGpr(DECODE_RT(opcode));
 	}
@@ -424,168 +1399,459 @@ public class DynamicRecompiler extends ClassLoader {
 
 	private void andi(int opcode) {
 		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16U(opcode));
+		pushConstant(DECODE_IMM16U(opcode));
 		mv.visitInsn(Opcodes.IAND);
 		updateGpr(DECODE_RT(opcode));
 	}
 
-	private void beq(int opcode) {
-	}
-
-	private void beql(int opcode) {
-	}
-
-	private void bgez(int opcode) {
-	}
-
-	private void bgezal(int opcode) {
+	private void clo(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jmips/cpu/Helper", "countLeadingOnes", "(I)I");
+		updateGpr(DECODE_RD(opcode));
 	}
 
-	private void bgezall(int opcode) {
+	private void clz(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jmips/cpu/Helper", "countLeadingZeros", "(I)I");
+		updateGpr(DECODE_RD(opcode));
 	}
 
-	private void bgezl(int opcode) {
-	}
+	private void div(int opcode) {
+		Label nonZeroLabel = new Label();
+		Label endLabel = new Label();
+		extractGpr(DECODE_RS(opcode));
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
+		extractGpr(DECODE_RT(opcode));
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
 
-	private void bgtz(int opcode) {
-	}
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitJumpInsn(Opcodes.IFNE, nonZeroLabel);
+		mv.visitInsn(Opcodes.ICONST_0);
+		updateLo();
+		mv.visitInsn(Opcodes.ICONST_0);
+		updateHi();
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
-	private void bgtzl(int opcode) {
+		mv.visitLabel(nonZeroLabel);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitInsn(Opcodes.IDIV);
+		updateLo();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitInsn(Opcodes.IREM);
+		updateHi();
+		mv.visitLabel(endLabel);
 	}
 
-	private void blez(int opcode) {
-	}
+	private void divu(int opcode) {
+		Label nonZeroLabel = new Label();
+		Label endLabel = new Label();
+		extractGpr(DECODE_RS(opcode));
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
+		extractGpr(DECODE_RT(opcode));
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
 
-	private void blezl(int opcode) {
-	}
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitJumpInsn(Opcodes.IFNE, nonZeroLabel);
+		mv.visitInsn(Opcodes.ICONST_0);
+		updateLo();
+		mv.visitInsn(Opcodes.ICONST_0);
+		updateHi();
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
-	private void bltz(int opcode) {
+		mv.visitLabel(nonZeroLabel);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		extractUnsigned();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		extractUnsigned();
+		mv.visitInsn(Opcodes.LDIV);
+		mv.visitInsn(Opcodes.L2I);
+		updateLo();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		extractUnsigned();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		extractUnsigned();
+		mv.visitInsn(Opcodes.LREM);
+		mv.visitInsn(Opcodes.L2I);
+		updateHi();
+		mv.visitLabel(endLabel);
 	}
 
-	private void bltzal(int opcode) {
+	private void loadAddress(int opcode) {
+		int rs = DECODE_RS(opcode);
+		int offset = DECODE_IMM16(opcode);
+		if (optimizer.isKnown(index, rs)) {
+			// The address was built by the previous instructions
+			// (usually with a LUI)
+			pushConstant(optimizer.getValue(index, rs) + offset);
+		} else {
+			extractGpr(rs);
+			if (offset != 0) {
+				pushConstant(offset);
+				mv.visitInsn(Opcodes.IADD);
+			}
+		}
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
 	}
 
-	private void bltzall(int opcode) {
+	// Calls one of the read methods of the cpu, and writes
+	// the result to rt unless the read failed
+	private void load(int opcode, String method, String descriptor, boolean oldValue, int mask) {
+		loadAddress(opcode);
+		callLoad(opcode, method, descriptor, oldValue, mask);
 	}
 
-	private void bltzl(int opcode) {
+	private void callLoad(int opcode, String method, String descriptor, boolean oldValue, int mask) {
+		int rt = DECODE_RT(opcode);
+		enterInstruction();
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		if (oldValue) extractGpr(rt);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, method, descriptor);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		checkMemoryError();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		if (mask != 0) {
+			pushConstant(mask);
+			mv.visitInsn(Opcodes.IAND);
+		}
+		updateGpr(rt);
+		checkExitRequested();
 	}
 
-	private void bne(int opcode) {
+	private void store(int opcode, String method, String descriptor, int conversion) {
+		loadAddress(opcode);
+		callStore(opcode, method, descriptor, conversion);
 	}
 
-	private void bnel(int opcode) {
+	private void callStore(int opcode, String method, String descriptor, int conversion) {
+		enterInstruction();
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		extractGpr(DECODE_RT(opcode));
+		if (conversion != 0) mv.visitInsn(conversion);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, method, descriptor);
+		checkExitRequested();
 	}
 
-	private void break_(int opcode) {
-	}
+	// Loads of size bytes which read the memory array when the address
+	// is aligned and translates to the RAM, and call the cpu otherwise
+	private void fastLoad(int opcode, int size, boolean unsigned, String method, String descriptor) {
+		Label slowLabel = new Label();
+		Label endLabel = new Label();
+		loadAddress(opcode);
+		translateFast(size, "translateLoad", slowLabel);
+		loadWord();
+		switch(size) {
+		case 1:
+			pushByteShift(3);
+			mv.visitInsn(Opcodes.IUSHR);
+			if (unsigned) {
+				pushConstant(0xFF);
+				mv.visitInsn(Opcodes.IAND);
+			} else {
+				mv.visitInsn(Opcodes.I2B);
+			}
+			break;
+		case 2:
+			pushByteShift(2);
+			mv.visitInsn(Opcodes.IUSHR);
+			if (!bigEndian) {
+				mv.visitInsn(Opcodes.I2S);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Short", "reverseBytes", "(S)S");
+			}
+			if (unsigned) {
+				pushConstant(0xFFFF);
+				mv.visitInsn(Opcodes.IAND);
+			} else {
+				mv.visitInsn(Opcodes.I2S);
+			}
+			break;
+		case 4:
+			if (!bigEndian)
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "reverseBytes", "(I)I");
+			break;
+		}
+		updateGpr(DECODE_RT(opcode));
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
-	private void cache(int opcode) {
+		mv.visitLabel(slowLabel);
+		slowLoad(method, descriptor);
+		if (unsigned) {
+			pushConstant((1 << (8 * size)) - 1);
+			mv.visitInsn(Opcodes.IAND);
+		}
+		updateGpr(DECODE_RT(opcode));
+		checkSliceEnd();
+		mv.visitLabel(endLabel);
 	}
 
-	private void clo(int opcode) {
+	// Calls one of the load methods of the cpu (which don't raise the
+	// exceptions) for the address in the first temporary, and pushes
+	// the value read if there was no error
+	private void slowLoad(String method, String descriptor) {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, method, descriptor);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		checkMemoryFault();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
 	}
 
-	private void clz(int opcode) {
-	}
+	// The unaligned loads read the aligned word and merge it into rt,
+	// shifted by the offset of the address (kept in the third temporary)
+	private void loadUnaligned(int opcode, boolean left) {
+		Label slowLabel = new Label();
+		Label endLabel = new Label();
+		int rt = DECODE_RT(opcode);
+		loadAddress(opcode);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		mv.visitInsn(Opcodes.ICONST_3);
+		mv.visitInsn(Opcodes.IAND);
+		if (bigEndian != left) {
+			mv.visitInsn(Opcodes.ICONST_3);
+			mv.visitInsn(Opcodes.IXOR);
+		}
+		mv.visitInsn(Opcodes.ICONST_3);
+		mv.visitInsn(Opcodes.ISHL);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER3);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		pushConstant(~3);
+		mv.visitInsn(Opcodes.IAND);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
 
-	private void deret(int opcode) {
-	}
+		translateFast(4, "translateLoad", slowLabel);
+		loadWord();
+		if (!bigEndian)
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "reverseBytes", "(I)I");
+		mergeUnaligned(rt, left);
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
-	private void div(int opcode) {
+		mv.visitLabel(slowLabel);
+		slowLoad("load32", "(I)I");
+		mergeUnaligned(rt, left);
+		checkSliceEnd();
+		mv.visitLabel(endLabel);
 	}
 
-	private void divu(int opcode) {
+	private void mergeUnaligned(int rt, boolean left) {
+		int shift = left ? Opcodes.ISHL : Opcodes.IUSHR;
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
+		mv.visitInsn(shift);
+		extractGpr(rt);
+		mv.visitInsn(Opcodes.ICONST_M1);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
+		mv.visitInsn(shift);
+		mv.visitInsn(Opcodes.ICONST_M1);
+		mv.visitInsn(Opcodes.IXOR);
+		mv.visitInsn(Opcodes.IAND);
+		mv.visitInsn(Opcodes.IOR);
+		updateGpr(rt);
 	}
 
-	private void eret(int opcode) {
-	}
+	private void fastStore(int opcode, int size, String method, String descriptor, int conversion) {
+		Label slowLabel = new Label();
+		Label endLabel = new Label();
+		loadAddress(opcode);
+		translateFast(size, "translateStore", slowLabel);
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_MEMORY);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitInsn(Opcodes.ICONST_2);
+		mv.visitInsn(Opcodes.IUSHR);
+		if (size == 4) {
+			extractGpr(DECODE_RT(opcode));
+			if (!bigEndian)
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "reverseBytes", "(I)I");
+		} else {
+			// Replaces the bytes inside of the word
+			int mask = (size == 1) ? 0xFF : 0xFFFF;
+			int offsetMask = (size == 1) ? 3 : 2;
+			mv.visitInsn(Opcodes.DUP2);
+			mv.visitInsn(Opcodes.IALOAD);
+			pushConstant(mask);
+			pushByteShift(offsetMask);
+			mv.visitInsn(Opcodes.ISHL);
+			mv.visitInsn(Opcodes.ICONST_M1);
+			mv.visitInsn(Opcodes.IXOR);
+			mv.visitInsn(Opcodes.IAND);
+			extractGpr(DECODE_RT(opcode));
+			if (size == 2 && !bigEndian) {
+				mv.visitInsn(Opcodes.I2S);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Short", "reverseBytes", "(S)S");
+			}
+			pushConstant(mask);
+			mv.visitInsn(Opcodes.IAND);
+			pushByteShift(offsetMask);
+			mv.visitInsn(Opcodes.ISHL);
+			mv.visitInsn(Opcodes.IOR);
+		}
+		mv.visitInsn(Opcodes.IASTORE);
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
-	private void j(int opcode) {
+		mv.visitLabel(slowLabel);
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		extractGpr(DECODE_RT(opcode));
+		if (conversion != 0) mv.visitInsn(conversion);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, method, descriptor);
+		checkMemoryFault();
+		checkSliceEnd();
+		mv.visitLabel(endLabel);
 	}
 
-	private void jal(int opcode) {
+	// Translates the address in the first temporary into the second one,
+	// going to the slow path unless the fast one can be taken
+	private void translateFast(int size, String method, Label slowLabel) {
+		if (analyzing) accessesMemory = true;
+		int rs = DECODE_RS(opcodes[index]);
+		boolean aligned = optimizer.isKnown(index, rs)
+			&& ((optimizer.getValue(index, rs) + DECODE_IMM16(opcodes[index])) & (size - 1)) == 0;
+		if (size > 1 && !aligned) {
+			mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+			pushConstant(size - 1);
+			mv.visitInsn(Opcodes.IAND);
+			mv.visitJumpInsn(Opcodes.IFNE, slowLabel);
+		}
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, method, "(I)I");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		mv.visitJumpInsn(Opcodes.IFLT, slowLabel);
 	}
 
-	private void jalr(int opcode) {
+	// Pushes the word of the memory at the translated address
+	private void loadWord() {
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_MEMORY);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		mv.visitInsn(Opcodes.ICONST_2);
+		mv.visitInsn(Opcodes.IUSHR);
+		mv.visitInsn(Opcodes.IALOAD);
 	}
 
-	private void jr(int opcode) {
+	// Pushes the shift of the byte (offsetMask 3) or half word (offsetMask 2)
+	// at the translated address inside of its word
+	private void pushByteShift(int offsetMask) {
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		pushConstant(offsetMask);
+		mv.visitInsn(Opcodes.IAND);
+		pushConstant(offsetMask);
+		mv.visitInsn(Opcodes.IXOR);
+		mv.visitInsn(Opcodes.ICONST_3);
+		mv.visitInsn(Opcodes.ISHL);
 	}
 
 	private void lb(int opcode) {
+		fastLoad(opcode, 1, false, "load8", "(I)B");
 	}
 
 	private void lbu(int opcode) {
+		fastLoad(opcode, 1, true, "load8", "(I)B");
 	}
 
 	private void lh(int opcode) {
+		fastLoad(opcode, 2, false, "load16", "(I)S");
 	}
 
 	private void lhu(int opcode) {
+		fastLoad(opcode, 2, true, "load16", "(I)S");
 	}
 
 	private void ll(int opcode) {
+		load(opcode, "read32linked", "(I)I", false, 0);
 	}
 
 	private void lui(int opcode) {
 		int val = DECODE_IMM16(opcode) << 16;
-		mv.visitLdcInsn(val);
+		pushConstant(val);
 		updateGpr(DECODE_RT(opcode));
 	}
 
 	private void lw(int opcode) {
+		fastLoad(opcode, 4, false, "load32", "(I)I");
 	}
 
 	private void lwl(int opcode) {
+		loadUnaligned(opcode, true);
 	}
 
 	private void lwr(int opcode) {
+		loadUnaligned(opcode, false);
 	}
 
-	private void madd(int opcode) {
-	}
-
-	private void maddu(int opcode) {
-	}
-
-	private void mfc0(int opcode) {
+	private void madd(int opcode, boolean unsigned, boolean subtract) {
+		extractHiLo();
+		extractGpr(DECODE_RS(opcode));
+		if (unsigned) extractUnsigned(); else mv.visitInsn(Opcodes.I2L);
+		extractGpr(DECODE_RT(opcode));
+		if (unsigned) extractUnsigned(); else mv.visitInsn(Opcodes.I2L);
+		mv.visitInsn(Opcodes.LMUL);
+		mv.visitInsn(subtract ? Opcodes.LSUB : Opcodes.LADD);
+		updateHiLo();
 	}
 
 	private void mfhi(int opcode) {
+		extractHi();
+		updateGpr(DECODE_RD(opcode));
 	}
 
 	private void mflo(int opcode) {
+		extractLo();
+		updateGpr(DECODE_RD(opcode));
 	}
 
 	private void movn(int opcode) {
+		Label skipLabel = new Label();
+		extractGpr(DECODE_RT(opcode));
+		mv.visitJumpInsn(Opcodes.IFEQ, skipLabel);
+		extractGpr(DECODE_RS(opcode));
+		updateGpr(DECODE_RD(opcode));
+		mv.visitLabel(skipLabel);
 	}
 
 	private void movz(int opcode) {
-	}
-
-	private void msub(int opcode) {
-	}
-
-	private void msubu(int opcode) {
-	}
-
-	private void mtc0(int opcode) {
+		Label skipLabel = new Label();
+		extractGpr(DECODE_RT(opcode));
+		mv.visitJumpInsn(Opcodes.IFNE, skipLabel);
+		extractGpr(DECODE_RS(opcode));
+		updateGpr(DECODE_RD(opcode));
+		mv.visitLabel(skipLabel);
 	}
 
 	private void mthi(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		updateHi();
 	}
 
 	private void mtlo(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		updateLo();
 	}
 
 	private void mul(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		extractGpr(DECODE_RT(opcode));
+		mv.visitInsn(Opcodes.IMUL);
+		updateGpr(DECODE_RD(opcode));
 	}
 
 	private void mult(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		mv.visitInsn(Opcodes.I2L);
+		extractGpr(DECODE_RT(opcode));
+		mv.visitInsn(Opcodes.I2L);
+		mv.visitInsn(Opcodes.LMUL);
+		updateHiLo();
 	}
 
 	private void multu(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		extractUnsigned();
+		extractGpr(DECODE_RT(opcode));
+		extractUnsigned();
+		mv.visitInsn(Opcodes.LMUL);
+		updateHiLo();
 	}
 
 	private void nor(int opcode) {
@@ -606,35 +1872,41 @@ public class DynamicRecompiler extends ClassLoader {
 
 	private void ori(int opcode) {
 		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16U(opcode));
+		pushConstant(DECODE_IMM16U(opcode));
 		mv.visitInsn(Opcodes.IOR);
 		updateGpr(DECODE_RT(opcode));
 	}
 
-	private void pref(int opcode) {
-	}
-
 	private void sb(int opcode) {
+		fastStore(opcode, 1, "store8", "(IB)V", Opcodes.I2B);
 	}
 
 	private void sc(int opcode) {
-	}
-
-	private void sdbbp(int opcode) {
+		int rt = DECODE_RT(opcode);
+		loadAddress(opcode);
+		enterInstruction();
+		mv.visitVarInsn(Opcodes.ALOAD, VAR_CPU);
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
+		extractGpr(rt);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CPU_CLASS, "write32conditional", "(II)Z");
+		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
+		checkMemoryError();
+		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
+		updateGpr(rt);
+		checkExitRequested();
 	}
 
 	private void sh(int opcode) {
+		fastStore(opcode, 2, "store16", "(IS)V", Opcodes.I2S);
 	}
 
 	private void sll(int opcode) {
 		int rd = DECODE_RD(opcode);
 		if (rd != 0) { // Check for nops
 			extractGpr(DECODE_RT(opcode));
-			mv.visitLdcInsn(DECODE_SA(opcode));
+			pushConstant(DECODE_SA(opcode));
 			mv.visitInsn(Opcodes.ISHL);
-			updateGpr(DECODE_RD(opcode));
-		} else {
-			mv.visitInsn(Opcodes.NOP);
+			updateGpr(rd);
 		}
 	}
 
@@ -655,7 +1927,7 @@ public class DynamicRecompiler extends ClassLoader {
 
 	private void slti(int opcode) {
 		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16(opcode));
+		pushConstant(DECODE_IMM16(opcode));
 
 		setOnCondition(Opcodes.IF_ICMPLT);
 		updateGpr(DECODE_RT(opcode));
@@ -663,9 +1935,9 @@ public class DynamicRecompiler extends ClassLoader {
 
 	private void sltiu(int opcode) {
 		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16(opcode));
+		pushConstant(DECODE_IMM16(opcode));
 
-		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jmips/cpu/Helper", "compareUnsigned", "(II)I");
+		compareUnsigned();
 		setOnCondition(Opcodes.IFLT);
 		updateGpr(DECODE_RT(opcode));
 	}
@@ -674,14 +1946,14 @@ public class DynamicRecompiler extends ClassLoader {
 		extractGpr(DECODE_RS(opcode));
 		extractGpr(DECODE_RT(opcode));
 
-		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jmips/cpu/Helper", "compareUnsigned", "(II)I");
+		compareUnsigned();
 		setOnCondition(Opcodes.IFLT);
 		updateGpr(DECODE_RD(opcode));
 	}
 
 	private void sra(int opcode) {
 		extractGpr(DECODE_RT(opcode));
-		mv.visitLdcInsn(DECODE_SA(opcode));
+		pushConstant(DECODE_SA(opcode));
 		mv.visitInsn(Opcodes.ISHR);
 		updateGpr(DECODE_RD(opcode));
 	}
@@ -695,7 +1967,7 @@ public class DynamicRecompiler extends ClassLoader {
 
 	private void srl(int opcode) {
 		extractGpr(DECODE_RT(opcode));
-		mv.visitLdcInsn(DECODE_SA(opcode));
+		pushConstant(DECODE_SA(opcode));
 		mv.visitInsn(Opcodes.IUSHR);
 		updateGpr(DECODE_RD(opcode));
 	}
@@ -707,23 +1979,6 @@ public class DynamicRecompiler extends ClassLoader {
 		updateGpr(DECODE_RD(opcode));
 	}
 
-	private void sub(int opcode) {
-		extractGpr(DECODE_RS(opcode));
-		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER1);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER1);
-		extractGpr(DECODE_RT(opcode));
-		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER2);
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER2);
-
-		mv.visitInsn(Opcodes.ISUB);
-		mv.visitVarInsn(Opcodes.ISTORE, VAR_TEMP_INTEGER3);
-
-		callCheckOverflow(false);
-
-		mv.visitVarInsn(Opcodes.ILOAD, VAR_TEMP_INTEGER3);
-		updateGpr(DECODE_RD(opcode));
-	}
-
 	private void subu(int opcode) {
 		extractGpr(DECODE_RS(opcode));
 		extractGpr(DECODE_RT(opcode));
@@ -732,88 +1987,101 @@ public class DynamicRecompiler extends ClassLoader {
 	}
 
 	private void sw(int opcode) {
+		fastStore(opcode, 4, "store32", "(II)V", 0);
 	}
 
 	private void swl(int opcode) {
+		store(opcode, "write32UnalignedLeft", "(II)V", 0);
 	}
 
 	private void swr(int opcode) {
+		store(opcode, "write32UnalignedRight", "(II)V", 0);
 	}
 
-	private void sync(int opcode) {
-	}
-
-	private void syscall(int opcode) {
-	}
-
-	private void teq(int opcode) {
-	}
-
-	private void teqi(int opcode) {
-	}
-
-	private void tge(int opcode) {
-	}
-
-	private void tgei(int opcode) {
-	}
-
-	private void tgeiu(int opcode) {
-	}
-
-	private void tgeu(int opcode) {
-	}
-
-	private void tlbp(int opcode) {
+	private void xor(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		extractGpr(DECODE_RT(opcode));
+		mv.visitInsn(Opcodes.IXOR);
+		updateGpr(DECODE_RD(opcode));
 	}
 
-	private void tlbr(int opcode) {
+	private void xori(int opcode) {
+		extractGpr(DECODE_RS(opcode));
+		pushConstant(DECODE_IMM16U(opcode));
+		mv.visitInsn(Opcodes.IXOR);
+		updateGpr(DECODE_RT(opcode));
 	}
 
-	private void tlbwi(int opcode) {
+	// The loader of a group of blocks, which can be collected
+	// together with them
+	// Counts the classes of the loaders collected so far as unloaded
+	private static void pollCollectedLoaders() {
+		LoaderReference reference;
+		while ((reference = (LoaderReference) collectedLoaders.poll()) != null) {
+			loaderReferences.remove(reference);
+			numUnloadedClasses.addAndGet(reference.getNumClasses());
+			unloadedClassBytes.addAndGet(reference.getClassBytes());
+		}
 	}
 
-	private void tlbwr(int opcode) {
+	// The number of classes of blocks defined by all the recompilers of
+	// the JVM which were not unloaded yet
+	public static long getNumLoadedClasses() {
+		pollCollectedLoaders();
+		return numDefinedClasses.get() - numUnloadedClasses.get();
 	}
 
-	private void tlt(int opcode) {
+	// The total size of these classes, in bytes
+	public static long getLoadedClassBytes() {
+		pollCollectedLoaders();
+		return definedClassBytes.get() - unloadedClassBytes.get();
 	}
 
-	private void tlti(int opcode) {
+	public static long getNumUnloadedClasses() {
+		pollCollectedLoaders();
+		return numUnloadedClasses.get();
 	}
 
-	private void tltiu(int opcode) {
+	public static long getUnloadedClassBytes() {
+		pollCollectedLoaders();
+		return unloadedClassBytes.get();
 	}
 
-	private void tltu(int opcode) {
-	}
+	// Enqueued once the loader (and so all of its classes) is collected
+	private static final class LoaderReference extends PhantomReference<BlockLoader> {
+		private volatile int numClasses;
+		private volatile long classBytes;
 
-	private void tne(int opcode) {
-	}
+		public LoaderReference(BlockLoader loader) {
+			super(loader, collectedLoaders);
+			loaderReferences.add(this);
+		}
 
-	private void tnei(int opcode) {
-	}
+		public void add(int size) {
+			numClasses++;
+			classBytes += size;
+		}
 
-	private void wait(int opcode) {
-	}
+		public int getNumClasses() {
+			return numClasses;
+		}
 
-	private void xor(int opcode) {
-		extractGpr(DECODE_RS(opcode));
-		extractGpr(DECODE_RT(opcode));
-		mv.visitInsn(Opcodes.IXOR);
-		updateGpr(DECODE_RD(opcode));
+		public long getClassBytes() {
+			return classBytes;
+		}
 	}
 
-	private void xori(int opcode) {
-		extractGpr(DECODE_RS(opcode));
-		mv.visitLdcInsn(DECODE_IMM16U(opcode));
-		mv.visitInsn(Opcodes.IXOR);
-		updateGpr(DECODE_RT(opcode));
-	}
+	private static final class BlockLoader extends ClassLoader {
+		public BlockLoader() {
+			super(DynamicRecompiler.class.getClassLoader());
+		}
 
-	private void invalid(int copno) {
-	}
+		public Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
 
-	private void reserved() {
+		public boolean isDefined(String name) {
+			return findLoadedClass(name) != null;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package jmips.cpu.dynrec;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Text file telling which guest code is in each class of the recompiled
+ * blocks, so that the time the host profilers see in the classes can be
+ * given to the guest functions. It has the format of the perf maps, with
+ * a line "start size name" for each block, where start and size (in hex)
+ * are the range of virtual addresses of the guest code and name has the
+ * guest function and the class. The lines are written when the blocks are
+ * installed, so nothing is added to their execution.
+ */
+public final class PerfMap {
+	private final File file;
+	private Writer writer;
+	private boolean opened;
+	private long numWriteErrors;
+
+	public PerfMap(File file) {
+		this.file = file;
+	}
+
+	// The file named after the process in the temporary directory
+	public static File getDefaultFile() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int index = name.indexOf('@');
+		String pid = (index > 0) ? name.substring(0, index) : name;
+		return new File(System.getProperty("java.io.tmpdir"), "jmips-" + pid + ".map");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	// Adds the guest code from pc to pc + size, with the label of the pc
+	// and the class of the block. The file is flushed at once, so that it
+	// can be read while the emulator runs.
+	public synchronized void add(int pc, int size, String label, String className) {
+		try {
+			if (writer == null) {
+				// Appended to after being closed
+				writer = new BufferedWriter(new FileWriter(file, opened));
+				opened = true;
+			}
+			writer.write(String.format("%08x %x %s [%s]%n", pc, size, label, className));
+			writer.flush();
+		} catch (IOException ex) {
+			numWriteErrors++;
+		}
+	}
+
+	public synchronized void close() {
+		if (writer == null)
+			return;
+		try {
+			writer.close();
+		} catch (IOException ex) {
+			numWriteErrors++;
+		}
+		writer = null;
+	}
+
+	public synchronized long getNumWriteErrors() {
+		return numWriteErrors;
+	}
+}
@@ -1,7 +1,187 @@
 package jmips.cpu.dynrec;
 
+import java.util.Arrays;
+
 import jmips.cpu.Cpu;
 
 public abstract class RecompiledBlock {
+	// The exits of the block which can be linked to other blocks
+	public static final int LINK_NONE = -1;
+	public static final int LINK_TARGET = 0;  // The target of the branch
+	public static final int LINK_NEXT = 1;    // The instruction after the block (or the delay slot)
+	public static final int LINK_DYNAMIC = 2; // A jump to a register, looked up in the inline cache
+
+	private static final int MAX_TARGETS = 4;
+
+	private int length;
+	private int codeSize;
+	private int physicalAddress;
+	private boolean valid = true;
+	private boolean used;
+	private int executions;
+	private int[] segmentAddresses;
+	private int[] segmentLengths;
+	private final RecompiledBlock[] links = new RecompiledBlock[2];
+
+	// The blocks where the jump to a register ending the block went
+	// (only the last one at first, then a few replaced in turn)
+	private RecompiledBlock[] targets;
+	private int numTargets;
+	private int nextTarget;
+
+	// The return address of the call ending the block, relative to its
+	// first instruction (or -1), and whether it ends with a return
+	private int returnOffset = -1;
+	private boolean returns;
+
+	// The entry of the ClassCache with the class of the block, if shared
+	private ClassCache.Entry sharedClass;
+
+	// The link of the exit taken by the last execution, set by the generated code
+	protected int exitLink = LINK_NONE;
+
+	// Executes the block starting at the pc of the cpu, and returns
+	// the number of cycles which were not used
 	public abstract int execute(Cpu cpu, int numCycles);
+
+	// The number of guest instructions translated in the block
+	public int getLength() {
+		return length;
+	}
+
+	void setLength(int length) {
+		this.length = length;
+	}
+
+	// The size of the class of the block, in bytes
+	public int getCodeSize() {
+		return codeSize;
+	}
+
+	void setCodeSize(int codeSize) {
+		this.codeSize = codeSize;
+	}
+
+	public int getPhysicalAddress() {
+		return physicalAddress;
+	}
+
+	void setPhysicalAddress(int physicalAddress) {
+		this.physicalAddress = physicalAddress;
+	}
+
+	// Set whenever the block is executed, and cleared by the eviction
+	boolean isUsed() {
+		return used;
+	}
+
+	void setUsed(boolean used) {
+		this.used = used;
+	}
+
+	// Counts the executions, for finding the heads of the traces
+	int countExecution() {
+		return ++executions;
+	}
+
+	// The physical addresses and lengths of the blocks of a trace,
+	// or null if this is a single block
+	int[] getSegmentAddresses() {
+		return segmentAddresses;
+	}
+
+	int[] getSegmentLengths() {
+		return segmentLengths;
+	}
+
+	void setSegments(int[] segmentAddresses, int[] segmentLengths) {
+		this.segmentAddresses = segmentAddresses;
+		this.segmentLengths = segmentLengths;
+	}
+
+	public boolean isTrace() {
+		return segmentAddresses != null;
+	}
+
+	public int getExitLink() {
+		return exitLink;
+	}
+
+	// Returns the block linked to the exit, or null if it was
+	// never resolved or was dropped since
+	public RecompiledBlock getLink(int link) {
+		RecompiledBlock block = links[link];
+		if (block != null && !block.valid) {
+			block = null;
+			links[link] = null;
+		}
+		return block;
+	}
+
+	void setLink(int link, RecompiledBlock block) {
+		links[link] = block;
+	}
+
+	// Returns the block at the physical address from the inline cache
+	// of the dynamic exit, or null if it is not there
+	RecompiledBlock getTarget(int physicalAddress) {
+		for(int i = 0; i < numTargets; i++) {
+			RecompiledBlock block = targets[i];
+			if (block.physicalAddress == physicalAddress) {
+				if (block.valid) return block;
+				// Replaced by the next one
+				nextTarget = i;
+				break;
+			}
+		}
+		return null;
+	}
+
+	void addTarget(RecompiledBlock block) {
+		if (numTargets < MAX_TARGETS && (numTargets == 0 || targets[nextTarget].valid)) {
+			if (targets == null || numTargets == targets.length)
+				targets = (targets == null) ? new RecompiledBlock[1] : Arrays.copyOf(targets, 2 * numTargets);
+			targets[numTargets++] = block;
+		} else {
+			targets[nextTarget] = block;
+			nextTarget = (nextTarget + 1) % numTargets;
+		}
+	}
+
+	int getReturnOffset() {
+		return returnOffset;
+	}
+
+	void setReturnOffset(int returnOffset) {
+		this.returnOffset = returnOffset;
+	}
+
+	boolean isReturn() {
+		return returns;
+	}
+
+	void setReturn(boolean returns) {
+		this.returns = returns;
+	}
+
+	void setSharedClass(ClassCache.Entry sharedClass) {
+		this.sharedClass = sharedClass;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	// Called when the block is dropped, so that the links to it are undone
+	void invalidate() {
+		valid = false;
+		links[LINK_TARGET] = null;
+		links[LINK_NEXT] = null;
+		targets = null;
+		numTargets = 0;
+		if (sharedClass != null) {
+			sharedClass.release();
+			sharedClass = null;
+		}
+	}
 }
@@ -0,0 +1,947 @@
+package jmips.cpu.dynrec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jmips.cpu.Cpu;
+import jmips.cpu.ExecutionEngine;
+import jmips.cpu.disasm.LabelResolver;
+
+/**
+ * Execution engine which runs the blocks translated by the
+ * DynamicRecompiler. The blocks are kept per physical page, and are
+ * dropped as soon as any of their instructions is modified.
+ * Blocks leaving through a static exit are linked to the next block, which
+ * then runs without going through the lookup (after checking the
+ * translation, when the exit goes to another page). The jumps to registers
+ * look for the next block in the small inline cache of the block ending
+ * with the jump, and the returns are predicted by a shadow stack of the
+ * return addresses of the calls.
+ * A block is only recompiled after the interpreter executed its first
+ * instruction a number of times, and the recompilation is done by a pool
+ * of background threads while the interpreter keeps running.
+ * The size of the translated code is bounded, and the blocks which were
+ * not used recently are evicted to make room for the new ones.
+ * Once a block was executed a number of times, the blocks executed after
+ * it are recorded (across pages as well) until the execution goes back to
+ * it, and the whole path is recompiled as a trace, which replaces the
+ * block. A trace is dropped when any of its instructions is modified.
+ * The engines of many systems running the same code can share the classes
+ * of their blocks (but not the traces) through a ClassCache.
+ * The classes are named after the guest functions found by the label
+ * resolver of the cpu, and the guest code of each one can be written to
+ * a PerfMap, for the profilers of the host.
+ */
+public final class RecompilingEngine implements ExecutionEngine {
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+	public static final int DEFAULT_COMPILE_THRESHOLD = 50;
+	public static final int DEFAULT_COMPILER_THREADS = 1;
+	public static final int DEFAULT_MAX_CODE_SIZE = 32 * 1024 * 1024;
+	public static final int DEFAULT_TRACE_THRESHOLD = 200;
+	private static final int MAX_TRACE_BLOCKS = 16;
+	private static final int RETURN_STACK_SIZE = 16; // A power of two
+	private static final int MAX_SYMBOL_DISTANCE = 1 << 16; // Beyond it, the symbol is of other code
+
+	// The counter value of the addresses waiting for their blocks
+	private static final char QUEUED = 0xFFFF;
+
+	// Marks the addresses where the recompiler can't start a block
+	private static final RecompiledBlock NOT_RECOMPILABLE = new RecompiledBlock() {
+		@Override
+		public int execute(Cpu cpu, int numCycles) {
+			return numCycles;
+		}
+	};
+
+	private final DynamicRecompiler recompiler = new DynamicRecompiler();
+	private RecompiledBlock[][] pages;
+	private int ramSize;
+
+	// The number of times the interpreter executed each address
+	private char[][] counters;
+	private int compileThreshold;
+
+	// The background compilation (no threads means compiling on the spot)
+	private final int numCompilerThreads;
+	private final ExecutorService compilers;
+	private final ThreadLocal<DynamicRecompiler> recompilers = new ThreadLocal<DynamicRecompiler>() {
+		@Override
+		protected DynamicRecompiler initialValue() {
+			return new DynamicRecompiler();
+		}
+	};
+	private final ConcurrentLinkedQueue<Compilation> finished = new ConcurrentLinkedQueue<Compilation>();
+	private volatile BlockCache blockCache;
+	private volatile ClassCache classCache;
+	private PerfMap perfMap;
+	private int epoch; // Changes whenever everything is invalidated
+
+	// Statistics
+	private int queueDepth;
+	private int maxQueueDepth;
+	private long numCompiledBlocks;
+	private long numDiscardedBlocks;
+	private long totalCompileTime;
+	private long totalCompileLatency;
+
+	// The number of blocks containing each of the instructions of the pages
+	// (dozens of blocks can overlap, and a trace can repeat a block, so a
+	// byte could wrap around to 0)
+	private int[][] coverage;
+	private int[] numBlocks;
+	private RecompiledBlock executing;
+
+	// The cached blocks, swept by the clock hand when looking for a block
+	// to evict. The dropped blocks are only removed by the sweep.
+	private final ArrayList<RecompiledBlock> cached = new ArrayList<RecompiledBlock>();
+	private int clockHand;
+	private int numDropped;
+	private long codeSize;
+	private long maxCodeSize = DEFAULT_MAX_CODE_SIZE;
+	private long numEvictedBlocks;
+
+	// The traces, and the one being recorded (if any)
+	private final ArrayList<RecompiledBlock> traces = new ArrayList<RecompiledBlock>();
+	private int traceThreshold = DEFAULT_TRACE_THRESHOLD;
+	private Trace recording;
+
+	// The shadow stack of the return addresses (see pushReturn)
+	private final int[] returnPcs = new int[RETURN_STACK_SIZE];
+	private final RecompiledBlock[] returnCallers = new RecompiledBlock[RETURN_STACK_SIZE];
+	private int returnTop;
+	private int returnDepth;
+	private long numPredictedReturns;
+	private long numInlineCacheHits;
+
+	public RecompilingEngine() {
+		this(DEFAULT_COMPILE_THRESHOLD, DEFAULT_COMPILER_THREADS);
+	}
+
+	public RecompilingEngine(int compileThreshold, int numCompilerThreads) {
+		setCompileThreshold(compileThreshold);
+		this.numCompilerThreads = numCompilerThreads;
+		if (numCompilerThreads > 0) {
+			compilers = Executors.newFixedThreadPool(numCompilerThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Recompiler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			compilers = null;
+		}
+	}
+
+	public int getCompileThreshold() {
+		return compileThreshold;
+	}
+
+	public void setCompileThreshold(int compileThreshold) {
+		this.compileThreshold = Math.max(1, Math.min(compileThreshold, QUEUED - 1));
+	}
+
+	public int getNumCompilerThreads() {
+		return numCompilerThreads;
+	}
+
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	// Makes the recompilers reuse the blocks saved by the previous runs
+	public void setBlockCache(BlockCache blockCache) {
+		this.blockCache = blockCache;
+		recompiler.setBlockCache(blockCache);
+	}
+
+	public ClassCache getClassCache() {
+		return classCache;
+	}
+
+	// Makes the recompilers share the classes of the blocks with the
+	// other engines using the same cache (such as ClassCache.getShared())
+	public void setClassCache(ClassCache classCache) {
+		this.classCache = classCache;
+		recompiler.setClassCache(classCache);
+	}
+
+	public PerfMap getPerfMap() {
+		return perfMap;
+	}
+
+	// Writes the guest code of the blocks installed to the map (or not, if null)
+	public void setPerfMap(PerfMap perfMap) {
+		this.perfMap = perfMap;
+	}
+
+	// The limit on the total size of the classes of the blocks, in bytes
+	public long getMaxCodeSize() {
+		return maxCodeSize;
+	}
+
+	public void setMaxCodeSize(long maxCodeSize) {
+		this.maxCodeSize = maxCodeSize;
+	}
+
+	public int getTraceThreshold() {
+		return traceThreshold;
+	}
+
+	// The number of executions of a block after which a trace starting
+	// there is recorded, or 0 to never record traces
+	public void setTraceThreshold(int traceThreshold) {
+		this.traceThreshold = Math.max(0, traceThreshold);
+	}
+
+	// Stops the compiler threads and drops the blocks, so that the
+	// classes shared with other engines are released
+	public void shutdown() {
+		if (compilers != null)
+			compilers.shutdownNow();
+		invalidateAll();
+		Compilation compilation;
+		while ((compilation = finished.poll()) != null)
+			discard(compilation);
+	}
+
+	@Override
+	public int execute(Cpu cpu, int numCycles) {
+		int pc = cpu.getPc();
+		if (recording != null && pc != recording.nextPc)
+			recording = null; // The interpreter executed something in between
+		if ((pc & 3) != 0)
+			return 0;
+
+		int physicalAddress = cpu.getCop0().translateFetch(pc);
+		if (physicalAddress < 0 || physicalAddress >= getRamSize(cpu))
+			return 0;
+
+		if (!finished.isEmpty())
+			installFinished(cpu);
+
+		RecompiledBlock block = lookup(cpu, physicalAddress, numCycles);
+		if (block == null)
+			return 0;
+
+		int remaining = numCycles;
+		int blockPc = pc;
+		int blockPhysicalAddress = physicalAddress;
+		while (true) {
+			executing = block;
+			int left = block.execute(cpu, remaining);
+			executing = null;
+			block.setUsed(true);
+			if (left == remaining) break;
+			remaining = left;
+
+			int link = block.getExitLink();
+			if (traceThreshold != 0)
+				record(cpu, block, blockPc, blockPhysicalAddress, link);
+			if (link == RecompiledBlock.LINK_NONE)
+				break;
+
+			int nextPc = cpu.getPc();
+			if ((nextPc & 3) != 0)
+				break;
+			int nextPhysicalAddress;
+			if (((nextPc ^ pc) & ~PAGE_MASK) == 0) {
+				// The translation of the page is known not to have changed,
+				// since the blocks don't contain instructions of the coprocessor 0
+				nextPhysicalAddress = (physicalAddress & ~PAGE_MASK) | (nextPc & PAGE_MASK);
+			} else {
+				nextPhysicalAddress = cpu.getCop0().translateFetch(nextPc);
+				if (nextPhysicalAddress < 0 || nextPhysicalAddress >= ramSize)
+					break;
+				pc = nextPc;
+				physicalAddress = nextPhysicalAddress;
+			}
+
+			RecompiledBlock next;
+			RecompiledBlock caller = null;
+			if (link == RecompiledBlock.LINK_DYNAMIC) {
+				if (block.isReturn())
+					caller = popReturn(nextPc);
+				next = (caller != null) ? caller.getLink(RecompiledBlock.LINK_NEXT) : null;
+				if (next != null && next.getPhysicalAddress() == nextPhysicalAddress) {
+					numPredictedReturns++;
+				} else {
+					next = block.getTarget(nextPhysicalAddress);
+					if (next != null) numInlineCacheHits++;
+				}
+			} else {
+				next = block.getLink(link);
+				if (next != null && next.getPhysicalAddress() != nextPhysicalAddress)
+					next = null; // Linked from another page, mapped somewhere else now
+			}
+
+			if (next == null) {
+				next = lookup(cpu, nextPhysicalAddress, remaining);
+				if (next == null || next == NOT_RECOMPILABLE) break;
+				if (link != RecompiledBlock.LINK_DYNAMIC)
+					block.setLink(link, next);
+				else if (caller != null)
+					caller.setLink(RecompiledBlock.LINK_NEXT, next);
+				else
+					block.addTarget(next);
+			}
+
+			if (block.getReturnOffset() >= 0 && link != RecompiledBlock.LINK_NEXT)
+				pushReturn(blockPc + block.getReturnOffset(), block);
+			blockPc = nextPc;
+			blockPhysicalAddress = nextPhysicalAddress;
+			block = next;
+		}
+		return numCycles - remaining;
+	}
+
+	// The shadow stack keeps the return addresses of the calls made by the
+	// blocks, with the blocks making them (whose next link is the block
+	// at the return address). When full, the oldest entry is overwritten.
+	private void pushReturn(int returnPc, RecompiledBlock caller) {
+		returnTop = (returnTop + 1) & (RETURN_STACK_SIZE - 1);
+		returnPcs[returnTop] = returnPc;
+		returnCallers[returnTop] = caller;
+		if (returnDepth < RETURN_STACK_SIZE)
+			returnDepth++;
+	}
+
+	// Pops the last call, returning its block if it returns to the pc
+	private RecompiledBlock popReturn(int pc) {
+		if (returnDepth == 0)
+			return null;
+		RecompiledBlock caller = returnCallers[returnTop];
+		int returnPc = returnPcs[returnTop];
+		returnCallers[returnTop] = null;
+		returnTop = (returnTop - 1) & (RETURN_STACK_SIZE - 1);
+		returnDepth--;
+		return (returnPc == pc && caller.isValid()) ? caller : null;
+	}
+
+	// Returns the block at the physical address, or null if the
+	// interpreter must execute the instruction there
+	private RecompiledBlock lookup(Cpu cpu, int physicalAddress, int numCycles) {
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		RecompiledBlock[] page = pages[pageNumber];
+		int index = (physicalAddress & PAGE_MASK) >> 2;
+		if (page != null && page[index] != null)
+			return page[index];
+
+		char[] counts = counters[pageNumber];
+		if (counts == null) {
+			counts = new char[(PAGE_MASK + 1) >> 2];
+			counters[pageNumber] = counts;
+		}
+		int count = counts[index];
+		if (count == QUEUED)
+			return null;
+		if (count + 1 < compileThreshold) {
+			counts[index] = (char) (count + 1);
+			return null;
+		}
+
+		if (compilers == null) {
+			// Near the end of a slice, the interpreter runs the remaining cycles
+			if (numCycles <= DynamicRecompiler.MAX_BLOCK_LENGTH)
+				return null;
+
+			long start = System.nanoTime();
+			recompiler.setSymbol(getSymbol(cpu, cpu.getPc()));
+			RecompiledBlock block = recompiler.recompile(cpu, physicalAddress);
+			long compileTime = System.nanoTime() - start;
+			counts[index] = 0;
+			numCompiledBlocks++;
+			totalCompileTime += compileTime;
+			totalCompileLatency += compileTime;
+			addToPerfMap(cpu, cpu.getPc(), block);
+			return install(cpu, physicalAddress, block);
+		}
+
+		// The instructions are read now, and the block is only installed
+		// if they are still the same when the compilation finishes
+		int[] code = DynamicRecompiler.scanBlock(cpu, physicalAddress);
+		if (code == null) {
+			counts[index] = 0;
+			return install(cpu, physicalAddress, null);
+		}
+
+		// The interpreter keeps counting the other instructions of the block
+		// while it is recompiled, so they are marked as well, otherwise each
+		// one would get its own block once it reaches the threshold
+		Arrays.fill(counts, index, index + code.length, QUEUED);
+		int pc = cpu.getPc();
+		compilers.execute(new Compilation(pc, physicalAddress, code, cpu.isBigEndian(), getSymbol(cpu, pc)));
+		if (++queueDepth > maxQueueDepth)
+			maxQueueDepth = queueDepth;
+		return null;
+	}
+
+	private RecompiledBlock install(Cpu cpu, int physicalAddress, RecompiledBlock block) {
+		if (block != null) {
+			makeRoom(block.getCodeSize());
+			block.setPhysicalAddress(physicalAddress);
+			cached.add(block);
+			codeSize += block.getCodeSize();
+		}
+
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		int index = (physicalAddress & PAGE_MASK) >> 2;
+		RecompiledBlock[] page = preparePage(cpu, physicalAddress);
+
+		if (block == null) block = NOT_RECOMPILABLE;
+		page[index] = block;
+		cover(coverage[pageNumber], index, block, 1);
+		return block;
+	}
+
+	// Counts one more block in the page of the physical address,
+	// and returns the blocks of the page
+	private RecompiledBlock[] preparePage(Cpu cpu, int physicalAddress) {
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		RecompiledBlock[] page = pages[pageNumber];
+		if (page == null) {
+			page = new RecompiledBlock[(PAGE_MASK + 1) >> 2];
+			pages[pageNumber] = page;
+			coverage[pageNumber] = new int[(PAGE_MASK + 1) >> 2];
+			cpu.markCodePage(physicalAddress);
+		}
+		numBlocks[pageNumber]++;
+		return page;
+	}
+
+	private void releasePage(int pageNumber) {
+		if (--numBlocks[pageNumber] == 0) {
+			pages[pageNumber] = null;
+			coverage[pageNumber] = null;
+		}
+	}
+
+	// Follows the blocks executed after the head of a trace, until
+	// the execution goes back to the head
+	private void record(Cpu cpu, RecompiledBlock block, int blockPc, int blockPhysicalAddress, int link) {
+		if (recording == null) {
+			if (block.isTrace() || block.countExecution() != traceThreshold)
+				return;
+			recording = new Trace(blockPc);
+		} else if (block.isTrace()) {
+			// Runs into another trace
+			finishTrace(cpu, false);
+			return;
+		}
+
+		// Left because of an exception or the budget
+		if (link == RecompiledBlock.LINK_NONE) {
+			recording = null;
+			return;
+		}
+
+		int[] code = DynamicRecompiler.scanBlock(cpu, blockPhysicalAddress);
+		if (code == null || code.length != block.getLength()) {
+			recording = null;
+		} else if (!recording.add(blockPc, blockPhysicalAddress, code)) {
+			finishTrace(cpu, false);
+		} else if (cpu.getPc() == recording.headPc) {
+			finishTrace(cpu, true);
+		} else {
+			recording.nextPc = cpu.getPc();
+		}
+	}
+
+	private void finishTrace(Cpu cpu, boolean closed) {
+		Trace trace = recording;
+		recording = null;
+		if (trace.numBlocks < 2)
+			return;
+
+		Compilation compilation = new Compilation(trace, closed, cpu.isBigEndian(), getSymbol(cpu, trace.headPc));
+		if (compilers == null) {
+			compilation.compile(recompiler);
+			if (compilation.isCurrent(cpu))
+				installTrace(cpu, compilation);
+			return;
+		}
+		compilers.execute(compilation);
+		if (++queueDepth > maxQueueDepth)
+			maxQueueDepth = queueDepth;
+	}
+
+	// Replaces the block at the start of the trace
+	private void installTrace(Cpu cpu, Compilation compilation) {
+		RecompiledBlock trace = compilation.block;
+		int physicalAddress = compilation.physicalAddresses[0];
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		int index = (physicalAddress & PAGE_MASK) >> 2;
+
+		// Too large, or a trace was already installed there
+		if (trace == null) return;
+		RecompiledBlock head = (pages[pageNumber] == null) ? null : pages[pageNumber][index];
+		if (head != null) {
+			if (head.isTrace()) return;
+			drop(physicalAddress);
+		}
+
+		makeRoom(trace.getCodeSize());
+		int[] lengths = new int[compilation.codes.length];
+		for(int i = 0; i < lengths.length; i++)
+			lengths[i] = compilation.codes[i].length;
+		trace.setSegments(compilation.physicalAddresses, lengths);
+		trace.setPhysicalAddress(physicalAddress);
+		cached.add(trace);
+		traces.add(trace);
+		codeSize += trace.getCodeSize();
+
+		for(int i = 0; i < lengths.length; i++)
+			preparePage(cpu, compilation.physicalAddresses[i]);
+		pages[pageNumber][index] = trace;
+		coverSegments(trace, 1);
+
+		for(int i = 0; i < lengths.length; i++)
+			addToPerfMap(cpu, compilation.pc + compilation.offsets[i], trace, 4 * lengths[i]);
+	}
+
+	// The guest function containing the pc, or null if it is not known
+	private static String getSymbol(Cpu cpu, int pc) {
+		int address = findSymbolAddress(cpu, pc);
+		return (address == 0) ? null : cpu.getLabelResolver().resolveSymbolByAddress(address);
+	}
+
+	// The address of the guest function containing the pc, or 0
+	private static int findSymbolAddress(Cpu cpu, int pc) {
+		LabelResolver resolver = cpu.getLabelResolver();
+		if (resolver == null)
+			return 0;
+		int address = resolver.findNearestSymbolAddress(pc);
+		int distance = pc - address;
+		if (distance < 0 || distance >= MAX_SYMBOL_DISTANCE)
+			return 0;
+		return address;
+	}
+
+	private void addToPerfMap(Cpu cpu, int pc, RecompiledBlock block) {
+		if (block != null)
+			addToPerfMap(cpu, pc, block, 4 * block.getLength());
+	}
+
+	private void addToPerfMap(Cpu cpu, int pc, RecompiledBlock block, int size) {
+		if (perfMap == null)
+			return;
+		String label = String.format("0x%08x", pc);
+		int address = findSymbolAddress(cpu, pc);
+		if (address != 0) {
+			String symbol = cpu.getLabelResolver().resolveSymbolByAddress(address);
+			if (symbol != null)
+				label = String.format("%s+0x%x", symbol, pc - address);
+		}
+		perfMap.add(pc, size, label, block.getClass().getName());
+	}
+
+	// Evicts the blocks until there is room for the given size. The clock
+	// algorithm gives a second chance to the blocks used since the last sweep.
+	private void makeRoom(int size) {
+		while (codeSize > 0 && codeSize + size > maxCodeSize) {
+			if (clockHand >= cached.size())
+				clockHand = 0;
+			RecompiledBlock block = cached.get(clockHand);
+			if (!block.isValid()) {
+				removeCached(clockHand);
+				numDropped--;
+			} else if (block.isUsed()) {
+				block.setUsed(false);
+				clockHand++;
+			} else {
+				// Removed from the list in the next iteration
+				drop(block.getPhysicalAddress());
+				numEvictedBlocks++;
+			}
+		}
+	}
+
+	private void removeCached(int position) {
+		int last = cached.size() - 1;
+		cached.set(position, cached.get(last));
+		cached.remove(last);
+	}
+
+	// Removes the invalid blocks from the list, when they are too many
+	private void compactCached() {
+		if (numDropped < 64 || 2 * numDropped < cached.size())
+			return;
+		int count = 0;
+		for(int i = 0; i < cached.size(); i++) {
+			RecompiledBlock block = cached.get(i);
+			if (block.isValid())
+				cached.set(count++, block);
+		}
+		while (cached.size() > count)
+			cached.remove(cached.size() - 1);
+		numDropped = 0;
+		clockHand = 0;
+	}
+
+	// Drops the block starting at the physical address
+	private void drop(int physicalAddress) {
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		int index = (physicalAddress & PAGE_MASK) >> 2;
+		RecompiledBlock[] page = pages[pageNumber];
+		RecompiledBlock block = page[index];
+
+		page[index] = null;
+		if (block.isTrace()) {
+			coverSegments(block, -1);
+			int[] addresses = block.getSegmentAddresses();
+			for(int i = 0; i < addresses.length; i++)
+				releasePage(addresses[i] >>> PAGE_SHIFT);
+			traces.remove(block);
+		} else {
+			cover(coverage[pageNumber], index, block, -1);
+			releasePage(pageNumber);
+		}
+
+		if (block != NOT_RECOMPILABLE) {
+			block.invalidate();
+			codeSize -= block.getCodeSize();
+			numDropped++;
+		}
+	}
+
+	// Installs the blocks recompiled in the background. This is done by
+	// the thread of the cpu, between the executions of the blocks.
+	private void installFinished(Cpu cpu) {
+		Compilation compilation;
+		while ((compilation = finished.poll()) != null) {
+			int physicalAddress = compilation.physicalAddresses[0];
+			int pageNumber = physicalAddress >>> PAGE_SHIFT;
+			int index = (physicalAddress & PAGE_MASK) >> 2;
+			queueDepth--;
+
+			if (compilation.trace) {
+				if (compilation.epoch != epoch || !compilation.isCurrent(cpu))
+					discard(compilation);
+				else
+					installTrace(cpu, compilation);
+				continue;
+			}
+
+			Arrays.fill(counters[pageNumber], index, index + compilation.codes[0].length, (char) 0);
+			if (compilation.epoch != epoch || !compilation.isCurrent(cpu)
+					|| (pages[pageNumber] != null && pages[pageNumber][index] != null)) {
+				discard(compilation);
+				continue;
+			}
+
+			addToPerfMap(cpu, compilation.pc, compilation.block);
+			install(cpu, physicalAddress, compilation.block);
+			numCompiledBlocks++;
+			totalCompileTime += compilation.compileTime;
+			totalCompileLatency += System.nanoTime() - compilation.requestTime;
+		}
+	}
+
+	private void discard(Compilation compilation) {
+		if (compilation.block != null)
+			compilation.block.invalidate();
+		numDiscardedBlocks++;
+	}
+
+	// Adds delta to the coverage of the instructions of the block
+	private static void cover(int[] covered, int index, RecompiledBlock block, int delta) {
+		// The addresses which can't be recompiled also count, since
+		// the instructions there might become recompilable
+		int end = index + Math.max(1, block.getLength());
+		for(int i = index; i < end; i++)
+			covered[i] += delta;
+	}
+
+	private void coverSegments(RecompiledBlock trace, int delta) {
+		int[] addresses = trace.getSegmentAddresses();
+		int[] lengths = trace.getSegmentLengths();
+		for(int i = 0; i < addresses.length; i++) {
+			int[] covered = coverage[addresses[i] >>> PAGE_SHIFT];
+			int index = (addresses[i] & PAGE_MASK) >> 2;
+			for(int j = 0; j < lengths[i]; j++)
+				covered[index + j] += delta;
+		}
+	}
+
+	// Checks if a block of the trace contains one of the instructions
+	private static boolean overlaps(RecompiledBlock trace, int physicalAddress, int length) {
+		int[] addresses = trace.getSegmentAddresses();
+		int[] lengths = trace.getSegmentLengths();
+		for(int i = 0; i < addresses.length; i++) {
+			if (physicalAddress < addresses[i] + 4 * lengths[i] && addresses[i] < physicalAddress + length)
+				return true;
+		}
+		return false;
+	}
+
+	private int getRamSize(Cpu cpu) {
+		if (pages == null) {
+			ramSize = cpu.getRam().getRamSize();
+			pages = new RecompiledBlock[(ramSize + PAGE_MASK) >>> PAGE_SHIFT][];
+			coverage = new int[pages.length][];
+			numBlocks = new int[pages.length];
+			counters = new char[pages.length][];
+		}
+		return ramSize;
+	}
+
+	@Override
+	public boolean invalidate(int physicalAddress, int length) {
+		if (!containsCode(physicalAddress))
+			return false;
+
+		int pageNumber = physicalAddress >>> PAGE_SHIFT;
+		RecompiledBlock[] page = pages[pageNumber];
+		int[] covered = coverage[pageNumber];
+		int first = (physicalAddress & PAGE_MASK) >> 2;
+		int last = ((physicalAddress & PAGE_MASK) + length - 1) >> 2;
+
+		boolean modified = false;
+		for(int i = first; i <= last; i++) {
+			if (covered[i] != 0) {
+				modified = true;
+				break;
+			}
+		}
+		if (!modified) return false;
+
+		// Drops every block containing one of the modified instructions
+		boolean executingModified = false;
+		int pageAddress = physicalAddress & ~PAGE_MASK;
+		for(int index = Math.max(0, first - DynamicRecompiler.MAX_BLOCK_LENGTH); index <= last; index++) {
+			RecompiledBlock block = page[index];
+			if (block == null || block.isTrace() || index + Math.max(1, block.getLength()) <= first)
+				continue;
+			drop(pageAddress + 4 * index);
+			if (block == executing)
+				executingModified = true;
+		}
+		for(int i = traces.size() - 1; i >= 0; i--) {
+			RecompiledBlock trace = traces.get(i);
+			if (!overlaps(trace, physicalAddress, length))
+				continue;
+			drop(trace.getPhysicalAddress());
+			if (trace == executing)
+				executingModified = true;
+		}
+		compactCached();
+		return executingModified;
+	}
+
+	@Override
+	public void invalidateAll() {
+		// The blocks being recompiled are discarded as well
+		epoch++;
+		if (pages == null) return;
+		for(int i = 0; i < pages.length; i++) {
+			RecompiledBlock[] page = pages[i];
+			if (page != null) {
+				for(int index = 0; index < page.length; index++) {
+					if (page[index] != null && page[index] != NOT_RECOMPILABLE)
+						page[index].invalidate();
+				}
+			}
+			pages[i] = null;
+			coverage[i] = null;
+			numBlocks[i] = 0;
+		}
+		cached.clear();
+		traces.clear();
+		recording = null;
+		Arrays.fill(returnCallers, null);
+		returnDepth = 0;
+		clockHand = 0;
+		numDropped = 0;
+		codeSize = 0;
+	}
+
+	@Override
+	public boolean containsCode(int physicalAddress) {
+		if (pages == null || physicalAddress < 0 || physicalAddress >= ramSize)
+			return false;
+		return pages[physicalAddress >>> PAGE_SHIFT] != null;
+	}
+
+	// The total size of the classes of the cached blocks, in bytes
+	public long getCodeSize() {
+		return codeSize;
+	}
+
+	// The classes of the blocks of all the engines of the JVM which were
+	// not unloaded yet, and their total size in bytes (unlike getCodeSize,
+	// this includes the dropped blocks whose classes are still loaded)
+	public static long getNumLoadedClasses() {
+		return DynamicRecompiler.getNumLoadedClasses();
+	}
+
+	public static long getLoadedClassBytes() {
+		return DynamicRecompiler.getLoadedClassBytes();
+	}
+
+	public int getNumCachedBlocks() {
+		return cached.size() - numDropped;
+	}
+
+	public long getNumEvictedBlocks() {
+		return numEvictedBlocks;
+	}
+
+	public int getNumTraces() {
+		return traces.size();
+	}
+
+	// The returns whose block was found by the shadow stack
+	public long getNumPredictedReturns() {
+		return numPredictedReturns;
+	}
+
+	// The other jumps to registers whose block was in the inline cache
+	public long getNumInlineCacheHits() {
+		return numInlineCacheHits;
+	}
+
+	// The number of addresses waiting for their blocks to be recompiled
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getNumCompiledBlocks() {
+		return numCompiledBlocks;
+	}
+
+	// The blocks which were modified while being recompiled
+	public long getNumDiscardedBlocks() {
+		return numDiscardedBlocks;
+	}
+
+	// The average time spent recompiling a block (in nanoseconds)
+	public long getAverageCompileTime() {
+		return (numCompiledBlocks == 0) ? 0 : totalCompileTime / numCompiledBlocks;
+	}
+
+	// The average time from the request to the installation of a block
+	// (in nanoseconds), including the time waiting in the queue
+	public long getAverageCompileLatency() {
+		return (numCompiledBlocks == 0) ? 0 : totalCompileLatency / numCompiledBlocks;
+	}
+
+	// A trace being recorded. The addresses of the blocks are
+	// relative to the virtual address of the first one.
+	private static final class Trace {
+		private final int headPc;
+		private final int[] physicalAddresses = new int[MAX_TRACE_BLOCKS];
+		private final int[] offsets = new int[MAX_TRACE_BLOCKS];
+		private final int[][] codes = new int[MAX_TRACE_BLOCKS][];
+		private int numBlocks;
+		private int length;
+		private int nextPc;
+
+		public Trace(int headPc) {
+			this.headPc = headPc;
+		}
+
+		// Returns false if the trace is full
+		public boolean add(int pc, int physicalAddress, int[] code) {
+			if (numBlocks == MAX_TRACE_BLOCKS || length + code.length > DynamicRecompiler.MAX_TRACE_LENGTH)
+				return false;
+			physicalAddresses[numBlocks] = physicalAddress;
+			offsets[numBlocks] = pc - headPc;
+			codes[numBlocks] = code;
+			numBlocks++;
+			length += code.length;
+			return true;
+		}
+	}
+
+	// A block (or a trace) being recompiled in the background
+	private final class Compilation implements Runnable {
+		private final boolean trace;
+		private final boolean closed;
+		private final boolean bigEndian;
+		private final int pc;
+		private final String symbol;
+		private final int[] physicalAddresses;
+		private final int[] offsets;
+		private final int[][] codes;
+		private final int epoch;
+		private final long requestTime;
+		private long compileTime;
+		private RecompiledBlock block;
+
+		public Compilation(int pc, int physicalAddress, int[] code, boolean bigEndian, String symbol) {
+			this.trace = false;
+			this.closed = false;
+			this.bigEndian = bigEndian;
+			this.pc = pc;
+			this.symbol = symbol;
+			this.physicalAddresses = new int[] { physicalAddress };
+			this.offsets = new int[] { 0 };
+			this.codes = new int[][] { code };
+			this.epoch = RecompilingEngine.this.epoch;
+			this.requestTime = System.nanoTime();
+		}
+
+		public Compilation(Trace trace, boolean closed, boolean bigEndian, String symbol) {
+			this.trace = true;
+			this.closed = closed;
+			this.bigEndian = bigEndian;
+			this.pc = trace.headPc;
+			this.symbol = symbol;
+			this.physicalAddresses = Arrays.copyOf(trace.physicalAddresses, trace.numBlocks);
+			this.offsets = Arrays.copyOf(trace.offsets, trace.numBlocks);
+			this.codes = Arrays.copyOf(trace.codes, trace.numBlocks);
+			this.epoch = RecompilingEngine.this.epoch;
+			this.requestTime = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				DynamicRecompiler recompiler = recompilers.get();
+				recompiler.setBlockCache(blockCache);
+				recompiler.setClassCache(classCache);
+				compile(recompiler);
+			} finally {
+				// A failed compilation leaves the address to the interpreter
+				finished.add(this);
+			}
+		}
+
+		public void compile(DynamicRecompiler recompiler) {
+			long start = System.nanoTime();
+			recompiler.setBigEndian(bigEndian);
+			recompiler.setSymbol(symbol);
+			try {
+				if (trace)
+					block = recompiler.recompileTrace(codes, physicalAddresses, offsets, closed);
+				else
+					block = recompiler.recompile(codes[0]);
+			} finally {
+				compileTime = System.nanoTime() - start;
+			}
+		}
+
+		// Checks if the instructions were not modified in the meantime
+		public boolean isCurrent(Cpu cpu) {
+			for(int i = 0; i < codes.length; i++) {
+				int[] code = codes[i];
+				for(int j = 0; j < code.length; j++) {
+					if (cpu.load32phys(physicalAddresses[i] + 4 * j) != code[j])
+						return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -177,6 +177,10 @@ public final class Uart implements Device {
 		receiveByteFromFifo();
 	}
 
+	public boolean hasReceiveData() {
+		return !recvFifo.isEmpty() || (lsr & UART_LSR_DR) != 0;
+	}
+
 	public void expireReceiveBufferData() {
 		if (!recvFifo.isEmpty() || (lsr & UART_LSR_DR) != 0) {
 			updateIrq();
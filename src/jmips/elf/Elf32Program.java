@@ -44,17 +44,15 @@ public class Elf32Program {
 
 		if (P_TYPE == PT_LOAD && P_FILESZ > P_MEMSZ) return false;
 
+		// The data is a view of the original buffer, not a copy
 		ByteBuffer data = null;
 		if (P_FILESZ > 0) {
-			data = ByteBuffer.allocate(P_FILESZ);
-			data.order(bb.order());
 			int oldposition = bb.position();
 			try {
 				bb.position(P_OFF);
-				ByteBuffer sliced = bb.slice();
-				sliced.limit(P_FILESZ);
-				data.put(sliced);
-				data.flip();
+				data = bb.slice();
+				data.limit(P_FILESZ);
+				data.order(bb.order());
 			} finally {
 				bb.position(oldposition);
 			}
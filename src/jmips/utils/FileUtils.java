@@ -29,6 +29,28 @@ public class FileUtils {
 		return buf;
 	}
 
+	// Maps the whole file in memory, read only
+	public static ByteBuffer mapFile(String fileName) {
+		ByteBuffer buf = null;
+		FileChannel fc = null;
+		try {
+			FileInputStream fis = new FileInputStream(fileName);
+			fc = fis.getChannel();
+			buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		} catch(FileNotFoundException ex) {
+			System.err.printf("File `%s' not found!\n", fileName);
+		} catch(IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			try {
+				if (fc != null) fc.close();
+			} catch(IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		return buf;
+	}
+
 	public static ByteBuffer readFileFragment(FileChannel fc, long pos, int size) {
 		ByteBuffer fragment = null;
 		try {
@@ -1,6 +1,7 @@
 package jmips.cpu;
 
 import static jmips.cpu.Mips.*;
+import jmips.cpu.dynrec.RecompilingEngine;
 
 public class CpuMemcpyTest {
 	private static final int BASE_ADDRESS = 0x80100000;
@@ -203,6 +204,9 @@ public class CpuMemcpyTest {
 			test.testMemcpyCpuInterpreted(cpu);
 		} else if ("MemcpyCpuInterpretedWithWhileTrue".equals(testName)) {
 			test.testMemcpyCpuInterpretedWithWhileTrue(cpu);
+		} else if ("MemcpyCpuRecompiled".equals(testName)) {
+			cpu.setExecutionEngine(new RecompilingEngine());
+			test.testMemcpyCpuInterpretedFast(cpu);
 		}
 
 		time = System.currentTimeMillis() - time;
@@ -231,4 +231,197 @@ public class CpuTest {
 		assertEquals(0x22334400, cpu.read32(BASE_ADDRESS + 12));
 
 	}
+
+	@Test
+	public void testSelfModifyingCode() {
+		Cpu cpu = createCpu();
+
+		reset(cpu);
+		cpu.write32(BASE_ADDRESS, ENCODE_ADDIU(GPR_V0, GPR_A0, 4));
+		cpu.setGpr(GPR_A0, 1);
+		cpu.step();
+		assertEquals(5, cpu.getGpr(GPR_V0));
+
+		reset(cpu);
+		cpu.write32(BASE_ADDRESS, ENCODE_ADDIU(GPR_V0, GPR_A0, 8));
+		cpu.step();
+		assertEquals(9, cpu.getGpr(GPR_V0));
+
+		// Write the new instruction with a store from the guest itself
+		reset(cpu);
+		cpu.write32(BASE_ADDRESS, ENCODE_SW(GPR_A1, GPR_A2, 8));
+		cpu.write32(BASE_ADDRESS + 4, ENCODE_SLL(GPR_ZR, GPR_ZR, 0));
+		cpu.write32(BASE_ADDRESS + 8, ENCODE_ADDIU(GPR_V0, GPR_A0, 8));
+		cpu.setGpr(GPR_A1, ENCODE_ADDIU(GPR_V0, GPR_A0, 16));
+		cpu.setGpr(GPR_A2, BASE_ADDRESS);
+		cpu.step(3);
+		assertEquals(17, cpu.getGpr(GPR_V0));
+	}
+
+	private void writeTlbEntry(Cpu cpu, int index, int entryHi, int physicalAddress) {
+		int entryLo = ((physicalAddress >>> 12) << ENTRYLO_PFN_SHIFT) | ENTRYLO_VALID | ENTRYLO_DIRTY;
+		cpu.setCop0Reg(COP0_PAGEMASK, 0, 0);
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, entryHi);
+		cpu.setCop0Reg(COP0_ENTRYLO0, 0, entryLo);
+		cpu.setCop0Reg(COP0_ENTRYLO1, 0, entryLo + (1 << ENTRYLO_PFN_SHIFT));
+		cpu.getCop0().tlbWrite(cpu, index);
+	}
+
+	@Test
+	public void testTlbRemap() {
+		Cpu cpu = createCpu();
+		final int address = 0x00400000;
+
+		reset(cpu);
+		cpu.write32(0x80200000, 0x11111111);
+		cpu.write32(0x80300000, 0x22222222);
+
+		writeTlbEntry(cpu, 0, address | 1, 0x00200000);
+		assertEquals(0x11111111, cpu.read32(address));
+
+		// Remapping the same entry must not hit the stale translation
+		writeTlbEntry(cpu, 0, address | 1, 0x00300000);
+		assertEquals(0x22222222, cpu.read32(address));
+		cpu.write32(address, 0x33333333);
+		assertEquals(0x33333333, cpu.read32(0x80300000));
+
+		// A different ASID does not match the entry
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, address | 2);
+		assertTrue(cpu.getCop0().translate(address, false) < 0);
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, address | 1);
+		assertEquals(0x00300000, cpu.getCop0().translate(address, false));
+	}
+
+	@Test
+	public void testFetchPageCache() {
+		Cpu cpu = createCpu();
+		final int address = 0x00400000;
+		final int pageA = 0x80200000;
+		final int pageB = 0x80300000;
+
+		// The tlbwi executed from the page remaps it to the other one
+		reset(cpu);
+		cpu.write32(pageA, ENCODE_ADDIU(GPR_V0, GPR_ZR, 1));
+		cpu.write32(pageA + 4, ENCODE_TLBWI());
+		cpu.write32(pageA + 8, ENCODE_ADDIU(GPR_V0, GPR_V0, 2));
+		cpu.write32(pageB + 8, ENCODE_ADDIU(GPR_V0, GPR_V0, 16));
+		writeTlbEntry(cpu, 0, address | 1, 0x00200000);
+		int entryLo = ((0x00300000 >>> 12) << ENTRYLO_PFN_SHIFT) | ENTRYLO_VALID | ENTRYLO_DIRTY;
+		cpu.setCop0Reg(COP0_ENTRYLO0, 0, entryLo);
+		cpu.setCop0Reg(COP0_INDEX, 0, 0);
+		cpu.setPc(address);
+		cpu.step(3);
+		assertEquals(17, cpu.getGpr(GPR_V0));
+
+		// Changing the ASID switches to the entry of the other ASID
+		reset(cpu);
+		cpu.write32(pageA + 16, ENCODE_ADDIU(GPR_V0, GPR_ZR, 1));
+		cpu.write32(pageA + 20, ENCODE_MTC0(GPR_A0, COP0_ENTRYHI, 0));
+		cpu.write32(pageA + 24, ENCODE_ADDIU(GPR_V0, GPR_V0, 2));
+		cpu.write32(pageB + 24, ENCODE_ADDIU(GPR_V0, GPR_V0, 16));
+		writeTlbEntry(cpu, 1, address | 2, 0x00300000);
+		writeTlbEntry(cpu, 0, address | 1, 0x00200000);
+		cpu.setGpr(GPR_A0, address | 2);
+		cpu.setPc(address + 16);
+		cpu.step(3);
+		assertEquals(17, cpu.getGpr(GPR_V0));
+
+		// A store into the page being executed is seen by the next fetch
+		reset(cpu);
+		cpu.write32(pageA + 32, ENCODE_SW(GPR_A1, GPR_A2, 8));
+		cpu.write32(pageA + 36, ENCODE_ADDIU(GPR_V0, GPR_ZR, 1));
+		cpu.write32(pageA + 40, ENCODE_ADDIU(GPR_V0, GPR_ZR, 2));
+		writeTlbEntry(cpu, 0, address | 1, 0x00200000);
+		cpu.setGpr(GPR_A1, ENCODE_ADDIU(GPR_V0, GPR_V0, 16));
+		cpu.setGpr(GPR_A2, address + 32);
+		cpu.setPc(address + 32);
+		cpu.step(3);
+		assertEquals(17, cpu.getGpr(GPR_V0));
+	}
+
+	@Test
+	public void testTlbProbeAndDuplicates() {
+		Cpu cpu = new Cpu(4 * 1024 * 1024, 64, null);
+		reset(cpu);
+		assertEquals(63, (cpu.getCop0Reg(COP0_CONFIG, 1) & CONFIG1_MMU_SIZE_MASK) >>> CONFIG1_MMU_SIZE_SHIFT);
+
+		for(int i = 0; i < 64; i++)
+			writeTlbEntry(cpu, i, (i << 13) | 1, 0x00200000);
+
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, (40 << 13) | 1);
+		cpu.getCop0().tlbProbe();
+		assertEquals(40, cpu.getCop0Reg(COP0_INDEX, 0));
+
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, (40 << 13) | 2);
+		cpu.getCop0().tlbProbe();
+		assertEquals(INDEX_PROBE, cpu.getCop0Reg(COP0_INDEX, 0));
+
+		// Rewriting an entry with its own mapping is not a duplicate
+		reset(cpu);
+		writeTlbEntry(cpu, 40, (40 << 13) | 1, 0x00300000);
+		assertEquals(BASE_ADDRESS, cpu.getPc());
+		assertEquals(0x00300000, cpu.getCop0().translate(40 << 13, false));
+
+		// But writing it into another slot raises a machine check
+		writeTlbEntry(cpu, 41, (40 << 13) | 1, 0x00300000);
+		assertEquals(EXCEPTION_CODE_MCHECK, (cpu.getCop0Reg(COP0_CAUSE, 0) & CAUSE_EXCCODE_MASK) >>> CAUSE_EXCCODE_SHIFT);
+
+		// A large page overlapping the small ones is also a duplicate
+		reset(cpu);
+		cpu.setCop0Reg(COP0_CAUSE, 0, 0);
+		cpu.setCop0Reg(COP0_PAGEMASK, 0, 0x01FFE000);
+		cpu.setCop0Reg(COP0_ENTRYHI, 0, 1);
+		cpu.getCop0().tlbWrite(cpu, 0);
+		assertEquals(EXCEPTION_CODE_MCHECK, (cpu.getCop0Reg(COP0_CAUSE, 0) & CAUSE_EXCCODE_MASK) >>> CAUSE_EXCCODE_SHIFT);
+	}
+
+	@Test
+	public void testWaitFastForward() {
+		Cpu cpu = createCpu();
+
+		reset(cpu);
+		cpu.setCop0Reg(COP0_COUNT, 0, 100);
+		cpu.setCop0Reg(COP0_COMPARE, 0, 1000);
+		cpu.wait(0);
+		assertTrue(cpu.isHalted());
+		assertEquals(1800, cpu.getCyclesToCompare());
+
+		cpu.step((int) cpu.getCyclesToCompare());
+		assertEquals(1000, cpu.getCounter());
+		assertEquals(BASE_ADDRESS, cpu.getPc());
+	}
+
+	@Test
+	public void testBulkTransfer() {
+		Cpu cpu = createCpu();
+		byte[] data = new byte[3 * 4096];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 13);
+
+		// Unaligned and crossing page boundaries
+		reset(cpu);
+		final int address = BASE_ADDRESS + 4093;
+		assertTrue(cpu.storeBytes(address, data, 0, data.length));
+		for(int i = 0; i < data.length; i += 97)
+			assertEquals(data[i], cpu.read8(address + i));
+
+		byte[] copy = new byte[data.length];
+		assertTrue(cpu.loadBytes(address, copy, 0, copy.length));
+		assertArrayEquals(data, copy);
+
+		// Unmapped address
+		assertFalse(cpu.loadBytes(0x00400000, copy, 0, 16));
+		assertEquals(MEMORY_ERROR_TLB_REFILL_LOAD, cpu.getLastMemoryError());
+
+		// The decoded instructions are invalidated
+		cpu.write32(BASE_ADDRESS, ENCODE_ADDIU(GPR_V0, GPR_A0, 1));
+		cpu.step();
+		reset(cpu);
+		int opcode = ENCODE_ADDIU(GPR_V0, GPR_A0, 2);
+		byte[] code = new byte[] { (byte) (opcode >>> 24), (byte) (opcode >>> 16), (byte) (opcode >>> 8), (byte) opcode };
+		cpu.setGpr(GPR_A0, 5);
+		assertTrue(cpu.storeBytes(BASE_ADDRESS, code, 0, 4));
+		cpu.step();
+		assertEquals(7, cpu.getGpr(GPR_V0));
+	}
 }
@@ -0,0 +1,69 @@
+package jmips.cpu;
+
+import static jmips.cpu.Mips.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EventSchedulerTest {
+	private static final class TestEvent extends Event {
+		private final List<TestEvent> fired;
+
+		public TestEvent(List<TestEvent> fired) {
+			this.fired = fired;
+		}
+
+		@Override
+		public void fire() {
+			fired.add(this);
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		EventScheduler scheduler = new EventScheduler();
+		List<TestEvent> fired = new ArrayList<TestEvent>();
+		TestEvent[] events = new TestEvent[20];
+		for(int i = 0; i < events.length; i++) {
+			events[i] = new TestEvent(fired);
+			scheduler.schedule(events[i], (i * 7) % events.length);
+		}
+		assertEquals(0, scheduler.getNextDeadline());
+
+		// Reschedule and cancel some events
+		scheduler.schedule(events[0], 100);
+		scheduler.cancel(events[3]);
+		assertFalse(events[3].isScheduled());
+
+		scheduler.runEvents(events.length - 1);
+		assertEquals(events.length - 2, fired.size());
+		for(int i = 1; i < fired.size(); i++)
+			assertTrue(fired.get(i - 1).getDeadline() <= fired.get(i).getDeadline());
+		assertEquals(100, scheduler.getNextDeadline());
+
+		scheduler.runEvents(100);
+		assertTrue(scheduler.isEmpty());
+		assertEquals(Long.MAX_VALUE, scheduler.getNextDeadline());
+	}
+
+	@Test
+	public void testTimerInterrupt() {
+		Cpu cpu = new Cpu(4 * 1024 * 1024, null);
+		cpu.reset();
+		cpu.setPc(0x80100000);
+		for(int i = 0; i < 16; i++)
+			cpu.write32(0x80100000 + 4 * i, ENCODE_ADDIU(GPR_V0, GPR_V0, 1));
+
+		cpu.setCop0Reg(COP0_COUNT, 0, 0);
+		cpu.setCop0Reg(COP0_COMPARE, 0, 5);
+		cpu.step(9);
+		assertEquals(0, cpu.getCop0Reg(COP0_CAUSE, 0) & (1 << (CAUSE_INTERRUPT_SHIFT + TIMER_IRQ)));
+		cpu.step(1);
+		assertEquals(5, cpu.getCounter());
+		assertEquals(10, cpu.getGpr(GPR_V0));
+		assertTrue((cpu.getCop0Reg(COP0_CAUSE, 0) & (1 << (CAUSE_INTERRUPT_SHIFT + TIMER_IRQ))) != 0);
+	}
+}
@@ -2,6 +2,10 @@ package jmips.cpu;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 public class RamTest {
@@ -56,4 +60,110 @@ public class RamTest {
 		assertEquals(0x11223344, ram.read32(0));
 	}
 
+	private void checkSameContents(Ram expected, Ram ram) {
+		for(int i = 0; i < 64; i++) {
+			ram.write8(i, (byte) (i * 7));
+			expected.write8(i, (byte) (i * 7));
+		}
+		ram.write16(66, (short) 0xABCD);
+		expected.write16(66, (short) 0xABCD);
+		ram.write32(68, 0x12345678);
+		expected.write32(68, 0x12345678);
+
+		for(int i = 0; i < 72; i += 4)
+			assertEquals(expected.read32(i), ram.read32(i));
+		for(int i = 0; i < 72; i += 2)
+			assertEquals(expected.read16(i), ram.read16(i));
+		for(int i = 0; i < 72; i++)
+			assertEquals(expected.read8(i), ram.read8(i));
+	}
+
+	@Test
+	public void testDirectRam() {
+		DirectRam ram = new DirectRam(0x1000);
+		assertEquals(0x1000, ram.getRamSize());
+		assertFalse(ram.isMapped());
+		checkSameContents(new Ram(0x1000), ram);
+	}
+
+	@Test
+	public void testMappedRam() throws IOException {
+		File file = File.createTempFile("ram", ".bin");
+		file.deleteOnExit();
+		DirectRam ram = DirectRam.mapFile(file.getPath(), 0x1000);
+		assertNotNull(ram);
+		assertTrue(ram.isMapped());
+		checkSameContents(new Ram(0x1000), ram);
+		ram.sync();
+		assertEquals(0x1000, file.length());
+
+		DirectRam other = DirectRam.mapFile(file.getPath(), 0x1000);
+		assertEquals(0x12345678, other.read32(68));
+	}
+
+	@Test
+	public void testSparseRam() {
+		SparseRam ram = new SparseRam(0x100000);
+		assertEquals(0x100000, ram.getRamSize());
+		assertEquals(0, ram.read32(0x80000));
+		assertEquals(0, ram.getResidentPages());
+
+		checkSameContents(new Ram(0x1000), ram);
+		assertEquals(1, ram.getResidentPages());
+
+		ram.write8(0x80003, (byte) 1);
+		assertTrue(ram.isResident(0x80000));
+		assertFalse(ram.isResident(0x81000));
+		assertEquals(2, ram.getResidentPages());
+
+		ram.write8(0x80003, (byte) 0);
+		assertEquals(1, ram.reclaimZeroPages());
+		assertEquals(1, ram.getResidentPages());
+		assertEquals(2, ram.getTouchedPages());
+		assertEquals(0x12345678, ram.read32(68));
+
+		// Clearing whole pages gives them back
+		ram.write32(0x90000, 1);
+		ram.write32(0x91000, 1);
+		ram.zeroBytes(0x90000, 0x1004);
+		assertEquals(2, ram.getResidentPages());
+		assertEquals(0, ram.read32(0x91000));
+	}
+
+	private void checkBulkTransfer(Ram ram) {
+		byte[] data = new byte[10000];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31);
+		ram.writeBytes(4095, data, 1, data.length - 1);
+		assertEquals(data[1], ram.read8(4095));
+		assertEquals(data[5], ram.read8(4099));
+
+		byte[] copy = new byte[data.length];
+		ram.readBytes(4095, copy, 1, copy.length - 1);
+		copy[0] = data[0];
+		assertArrayEquals(data, copy);
+
+		ByteBuffer bb = ByteBuffer.allocateDirect(6);
+		ram.readBytes(4096, bb);
+		assertFalse(bb.hasRemaining());
+		assertEquals(data[2], bb.get(0));
+
+		bb.rewind();
+		ram.writeBytes(2, bb);
+		assertEquals(data[2], ram.read8(2));
+		assertEquals(data[7], ram.read8(7));
+
+		ram.zeroBytes(4095, 4099);
+		assertEquals(data[0], ram.read8(4094));
+		for(int i = 4095; i < 8194; i++)
+			assertEquals(0, ram.read8(i));
+		assertEquals(data[4100], ram.read8(8194));
+	}
+
+	@Test
+	public void testBulkTransfer() {
+		checkBulkTransfer(new Ram(0x4000));
+		checkBulkTransfer(new DirectRam(0x4000));
+		checkBulkTransfer(new SparseRam(0x4000));
+	}
 }
@@ -2,12 +2,20 @@ package jmips.cpu.dynrec;
 
 import static jmips.cpu.Mips.*;
 import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
 import jmips.cpu.Cpu;
+import jmips.cpu.disasm.LabelResolver;
 
 import org.junit.Test;
 
 public class DynamicRecompilerTest {
 	private static final int BASE_ADDRESS = 0x80100000;
+	private static final int DATA_ADDRESS = 0x80200000;
 
 	private Cpu createCpu() {
 		Cpu cpu = new Cpu(4 * 1024 * 1024, null);
@@ -20,6 +28,41 @@ public class DynamicRecompilerTest {
 		cpu.setPc(BASE_ADDRESS);
 	}
 
+	// Returns an interpreted and a recompiled cpu with the same program
+	private Cpu[] createCpus(int... program) {
+		Cpu[] cpus = new Cpu[] { createCpu(), createCpu() };
+		cpus[1].setExecutionEngine(new RecompilingEngine(1, 0));
+		for(Cpu cpu : cpus) {
+			for(int i = 0; i < program.length; i++)
+				cpu.store32(BASE_ADDRESS + 4 * i, program[i]);
+		}
+		return cpus;
+	}
+
+	private void setGpr(Cpu[] cpus, int reg, int value) {
+		for(Cpu cpu : cpus)
+			cpu.setGpr(reg, value);
+	}
+
+	private void step(Cpu[] cpus, int num) {
+		for(Cpu cpu : cpus)
+			cpu.step(num);
+		assertSameState(cpus[0], cpus[1]);
+	}
+
+	private void assertSameState(Cpu expected, Cpu actual) {
+		assertEquals(expected.getPc(), actual.getPc());
+		assertEquals(expected.getCycles(), actual.getCycles());
+		for(int reg = 0; reg < 32; reg++)
+			assertEquals("gpr " + reg, expected.getGpr(reg), actual.getGpr(reg));
+		assertEquals(expected.getHi(), actual.getHi());
+		assertEquals(expected.getLo(), actual.getLo());
+		assertEquals(expected.isBranchDelaySlot(), actual.isBranchDelaySlot());
+		assertEquals(expected.getCop0Reg(COP0_EPC, 0), actual.getCop0Reg(COP0_EPC, 0));
+		assertEquals(expected.getCop0Reg(COP0_CAUSE, 0), actual.getCop0Reg(COP0_CAUSE, 0));
+		assertEquals(expected.getCop0Reg(COP0_BADVADDR, 0), actual.getCop0Reg(COP0_BADVADDR, 0));
+	}
+
 	@Test
 	public void testRecompile() {
 		Cpu cpu = createCpu();
@@ -30,8 +73,526 @@ public class DynamicRecompilerTest {
 		RecompiledBlock block = dynamicRecompiler.recompile(cpu, BASE_ADDRESS & 0x1FFFFFFF);
 		assertNotNull(block);
 		cpu.setGpr(GPR_A1, 4);
-		block.execute(cpu, 1);
+
+		// Blocks don't run unless the whole block fits in the budget
+		assertEquals(0, block.execute(cpu, 0));
+		assertEquals(4, cpu.getGpr(GPR_A1));
+		block.execute(cpu, block.getLength());
 		assertEquals(8, cpu.getGpr(GPR_A1));
 	}
 
+	@Test
+	public void testLoop() {
+		Cpu[] cpus = createCpus(
+			ENCODE_LW(GPR_T0, GPR_A0, 0),
+			ENCODE_ADDIU(GPR_A0, GPR_A0, 4),
+			ENCODE_MULT(GPR_T0, GPR_A2),
+			ENCODE_MFLO(GPR_T1),
+			ENCODE_SW(GPR_T1, GPR_A1, 0),
+			ENCODE_ADDIU(GPR_A2, GPR_A2, -1),
+			ENCODE_BNE(GPR_A2, GPR_ZR, BASE_ADDRESS, BASE_ADDRESS + 24),
+			ENCODE_ADDIU(GPR_A1, GPR_A1, 4),
+			ENCODE_WAIT(0));
+		for(Cpu cpu : cpus) {
+			for(int i = 0; i < 64; i++)
+				cpu.store32(DATA_ADDRESS + 4 * i, 0x01010101 * i);
+		}
+		setGpr(cpus, GPR_A0, DATA_ADDRESS);
+		setGpr(cpus, GPR_A1, DATA_ADDRESS + 256);
+		setGpr(cpus, GPR_A2, 64);
+
+		// Stop at every possible position inside of the loop
+		for(int i = 0; i < 10; i++)
+			step(cpus, 3);
+		for(int i = 0; i < 6; i++)
+			step(cpus, 65 + i);
+		step(cpus, 100);
+		assertTrue(cpus[1].isHalted());
+		for(int i = 0; i < 64; i++)
+			assertEquals(cpus[0].load32(DATA_ADDRESS + 256 + 4 * i), cpus[1].load32(DATA_ADDRESS + 256 + 4 * i));
+	}
+
+	@Test
+	public void testMemoryAccess() {
+		for(int order = 0; order < 2; order++) {
+			Cpu[] cpus = createCpus();
+			for(Cpu cpu : cpus) {
+				cpu.setBigEndian(order == 0);
+				cpu.store32(BASE_ADDRESS, ENCODE_LB(GPR_T0, GPR_A0, 1));
+				cpu.store32(BASE_ADDRESS + 4, ENCODE_LBU(GPR_T1, GPR_A0, 3));
+				cpu.store32(BASE_ADDRESS + 8, ENCODE_LH(GPR_T2, GPR_A0, 2));
+				cpu.store32(BASE_ADDRESS + 12, ENCODE_LHU(GPR_T3, GPR_A0, 0));
+				cpu.store32(BASE_ADDRESS + 16, ENCODE_SB(GPR_T0, GPR_A0, 6));
+				cpu.store32(BASE_ADDRESS + 20, ENCODE_SH(GPR_T2, GPR_A0, 4));
+				cpu.store32(BASE_ADDRESS + 24, ENCODE_SW(GPR_T3, GPR_A0, 8));
+				cpu.store32(BASE_ADDRESS + 28, ENCODE_LW(GPR_T4, GPR_A0, 4));
+				cpu.store32(BASE_ADDRESS + 32, ENCODE_J(BASE_ADDRESS, BASE_ADDRESS + 32));
+				cpu.store32(BASE_ADDRESS + 36, ENCODE_ADDIU(GPR_A0, GPR_A0, 4));
+				cpu.store32(DATA_ADDRESS, 0x8081F2F3);
+				cpu.setGpr(GPR_A0, DATA_ADDRESS);
+			}
+
+			for(int i = 0; i < 3; i++)
+				step(cpus, 100);
+			for(int i = 0; i < 36; i++)
+				assertEquals(cpus[0].load32(DATA_ADDRESS + 4 * i), cpus[1].load32(DATA_ADDRESS + 4 * i));
+		}
+	}
+
+	@Test
+	public void testBranches() {
+		Cpu[] cpus = createCpus(
+			ENCODE_BNEL(GPR_ZR, GPR_ZR, BASE_ADDRESS + 64, BASE_ADDRESS),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1), // Skipped
+			ENCODE_BGEZAL(GPR_ZR, BASE_ADDRESS + 32, BASE_ADDRESS + 8),
+			ENCODE_ADDIU(GPR_T1, GPR_RA, 0),
+			0, 0, 0, 0,
+			ENCODE_ADDIU(GPR_T2, GPR_ZR, 7),
+			ENCODE_JALR(GPR_T3, GPR_RA),
+			ENCODE_MOVN(GPR_T4, GPR_T2, GPR_T2),
+			ENCODE_J(BASE_ADDRESS + 64, BASE_ADDRESS + 44),
+			ENCODE_NOR(GPR_T5, GPR_T2, GPR_ZR));
+
+		step(cpus, 1);
+		assertEquals(BASE_ADDRESS + 8, cpus[1].getPc());
+		step(cpus, 2);
+		assertEquals(BASE_ADDRESS + 32, cpus[1].getPc());
+		assertEquals(BASE_ADDRESS + 16, cpus[1].getGpr(GPR_T1));
+		step(cpus, 3);
+		assertEquals(BASE_ADDRESS + 16, cpus[1].getPc());
+		assertEquals(BASE_ADDRESS + 44, cpus[1].getGpr(GPR_T3));
+		assertEquals(7, cpus[1].getGpr(GPR_T4));
+		step(cpus, 5);
+		assertEquals(0, cpus[1].getGpr(GPR_T0));
+	}
+
+	@Test
+	public void testExceptions() {
+		Cpu[] cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_BEQ(GPR_ZR, GPR_ZR, BASE_ADDRESS + 32, BASE_ADDRESS + 4),
+			ENCODE_LW(GPR_T1, GPR_A0, 2), // Address error in the delay slot
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1));
+		setGpr(cpus, GPR_A0, DATA_ADDRESS);
+		setGpr(cpus, GPR_T1, 5);
+
+		step(cpus, 3);
+		assertEquals(BASE_ADDRESS + 4, cpus[1].getCop0Reg(COP0_EPC, 0));
+		assertTrue((cpus[1].getCop0Reg(COP0_CAUSE, 0) & CAUSE_BD) != 0);
+		assertEquals(5, cpus[1].getGpr(GPR_T1));
+
+		cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_ADD(GPR_T1, GPR_A0, GPR_A0),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1));
+		setGpr(cpus, GPR_A0, 0x7FFFFFFF);
+		setGpr(cpus, GPR_T1, 5);
+
+		step(cpus, 2);
+		assertEquals(BASE_ADDRESS + 4, cpus[1].getCop0Reg(COP0_EPC, 0));
+		assertEquals(5, cpus[1].getGpr(GPR_T1));
+		assertEquals(1, cpus[1].getGpr(GPR_T0));
+
+		cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_LWL(GPR_T1, GPR_A0, 1),
+			ENCODE_LWR(GPR_T1, GPR_A0, 4),
+			ENCODE_J(BASE_ADDRESS, BASE_ADDRESS + 12),
+			ENCODE_SH(GPR_T0, GPR_A0, 1)); // Address error after the registers were modified
+		for(Cpu cpu : cpus) {
+			cpu.store32(DATA_ADDRESS, 0x01020304);
+			cpu.store32(DATA_ADDRESS + 4, 0x05060708);
+		}
+		setGpr(cpus, GPR_A0, DATA_ADDRESS);
+
+		step(cpus, 5);
+		assertEquals(BASE_ADDRESS + 12, cpus[1].getCop0Reg(COP0_EPC, 0));
+		assertEquals(1, cpus[1].getGpr(GPR_T0));
+		assertEquals(0x02030405, cpus[1].getGpr(GPR_T1));
+	}
+
+	@Test
+	public void testConstants() {
+		Cpu[] cpus = createCpus(
+			ENCODE_LUI(GPR_A0, DATA_ADDRESS >>> 16),
+			ENCODE_ORI(GPR_A0, GPR_A0, 8),
+			ENCODE_ADDIU(GPR_T0, GPR_ZR, 100), // Overwritten before being read
+			ENCODE_ADDIU(GPR_T0, GPR_ZR, 200),
+			ENCODE_SW(GPR_T0, GPR_A0, -4),
+			ENCODE_LW(GPR_T1, GPR_A0, -4),
+			ENCODE_SUB(GPR_T2, GPR_T1, GPR_T0),
+			ENCODE_ADDI(GPR_T3, GPR_A1, 10),
+			ENCODE_LUI(GPR_T4, 0x7FFF),
+			ENCODE_J(BASE_ADDRESS, BASE_ADDRESS + 36),
+			ENCODE_ADD(GPR_T5, GPR_T4, GPR_T4)); // Overflow with known operands
+		setGpr(cpus, GPR_A1, 5);
+
+		step(cpus, 11);
+		assertEquals(BASE_ADDRESS + 36, cpus[1].getCop0Reg(COP0_EPC, 0));
+		assertTrue((cpus[1].getCop0Reg(COP0_CAUSE, 0) & CAUSE_BD) != 0);
+		assertEquals(200, cpus[1].getGpr(GPR_T0));
+		assertEquals(200, cpus[1].getGpr(GPR_T1));
+		assertEquals(0, cpus[1].getGpr(GPR_T2));
+		assertEquals(15, cpus[1].getGpr(GPR_T3));
+		assertEquals(200, cpus[1].load32(DATA_ADDRESS + 4));
+
+		// An overflow of ADDI with an unknown register
+		cpus = createCpus(
+			ENCODE_J(BASE_ADDRESS, BASE_ADDRESS),
+			ENCODE_ADDI(GPR_T0, GPR_A0, 2));
+		setGpr(cpus, GPR_A0, Integer.MAX_VALUE - 1);
+		step(cpus, 2);
+		assertEquals(BASE_ADDRESS, cpus[1].getCop0Reg(COP0_EPC, 0));
+	}
+
+	@Test
+	public void testSelfModifyingCode() {
+		Cpu[] cpus = createCpus(
+			ENCODE_SW(GPR_A1, GPR_A0, 8),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1));
+		setGpr(cpus, GPR_A0, BASE_ADDRESS);
+		setGpr(cpus, GPR_A1, ENCODE_ADDIU(GPR_T0, GPR_T0, 100));
+
+		step(cpus, 4);
+		assertEquals(102, cpus[1].getGpr(GPR_T0));
+	}
+
+	@Test
+	public void testBackgroundCompilation() throws InterruptedException {
+		Cpu[] cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_BNE(GPR_T0, GPR_A0, BASE_ADDRESS, BASE_ADDRESS + 4),
+			ENCODE_ADDU(GPR_T1, GPR_T1, GPR_T0),
+			ENCODE_WAIT(0));
+		RecompilingEngine engine = new RecompilingEngine(10, 1);
+		cpus[1].setExecutionEngine(engine);
+		setGpr(cpus, GPR_A0, 100000);
+
+		// The interpreter keeps running while the block is recompiled
+		step(cpus, 100);
+		assertTrue(engine.getMaxQueueDepth() > 0);
+		for(int i = 0; i < 1000 && engine.getQueueDepth() > 0; i++) {
+			Thread.sleep(1);
+			step(cpus, 100);
+		}
+		assertEquals(0, engine.getQueueDepth());
+		assertTrue(engine.getNumCompiledBlocks() > 0);
+		assertTrue(engine.getAverageCompileLatency() >= engine.getAverageCompileTime());
+
+		step(cpus, 1000000);
+		assertTrue(cpus[1].isHalted());
+		engine.shutdown();
+	}
+
+	@Test
+	public void testBackgroundCompilationOfLoop() throws InterruptedException {
+		Cpu[] cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_ADDU(GPR_T1, GPR_T1, GPR_T0),
+			ENCODE_XOR(GPR_T2, GPR_T2, GPR_T1),
+			ENCODE_SLL(GPR_T3, GPR_T2, 3),
+			ENCODE_SUBU(GPR_T4, GPR_T3, GPR_T0),
+			ENCODE_BNE(GPR_T0, GPR_A0, BASE_ADDRESS, BASE_ADDRESS + 20),
+			ENCODE_OR(GPR_A1, GPR_A1, GPR_T4),
+			ENCODE_WAIT(0));
+		RecompilingEngine engine = new RecompilingEngine(50, 1);
+		engine.setTraceThreshold(0);
+		cpus[1].setExecutionEngine(engine);
+		setGpr(cpus, GPR_A0, 100000);
+
+		// The other instructions of the loop keep being interpreted while
+		// it is recompiled, but they don't get blocks of their own
+		for(int i = 0; i < 1000 && (engine.getMaxQueueDepth() == 0 || engine.getQueueDepth() > 0); i++) {
+			Thread.sleep(1);
+			step(cpus, 100);
+		}
+		assertEquals(0, engine.getQueueDepth());
+		step(cpus, 10000);
+		assertEquals(1, engine.getNumCompiledBlocks());
+		assertEquals(1, engine.getNumCachedBlocks());
+		engine.shutdown();
+	}
+
+	@Test
+	public void testCodeCacheEviction() {
+		int[] program = new int[3 * 16 + 4];
+		for(int i = 0; i < 16; i++) {
+			int address = BASE_ADDRESS + 12 * i;
+			program[3 * i] = ENCODE_ADDIU(GPR_T0, GPR_T0, i);
+			program[3 * i + 1] = ENCODE_BEQ(GPR_ZR, GPR_ZR, address + 12, address + 4);
+		}
+		program[48] = ENCODE_ADDIU(GPR_A0, GPR_A0, -1);
+		program[49] = ENCODE_BNE(GPR_A0, GPR_ZR, BASE_ADDRESS, BASE_ADDRESS + 196);
+		program[51] = ENCODE_WAIT(0);
+
+		Cpu[] cpus = createCpus(program);
+		RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+		engine.setMaxCodeSize(2048);
+		setGpr(cpus, GPR_A0, 50);
+
+		while (!cpus[0].isHalted())
+			step(cpus, 200);
+		assertTrue(cpus[1].isHalted());
+		assertTrue(engine.getCodeSize() <= 2048);
+		assertTrue(engine.getNumEvictedBlocks() > 0);
+		assertTrue(engine.getNumCachedBlocks() < 17);
+	}
+
+	@Test
+	public void testClassUnloading() throws InterruptedException {
+		// The blocks of the other tests can be unloaded meanwhile, so
+		// the unloaded ones are added back
+		long unloadedClasses = DynamicRecompiler.getNumUnloadedClasses();
+		long definedClasses = RecompilingEngine.getNumLoadedClasses() + unloadedClasses;
+		long definedBytes = RecompilingEngine.getLoadedClassBytes() + DynamicRecompiler.getUnloadedClassBytes();
+
+		// Two loaders full of blocks, which are then dropped
+		DynamicRecompiler recompiler = new DynamicRecompiler();
+		long size = 0;
+		for(int i = 0; i < 32; i++)
+			size += recompiler.recompile(new int[] { ENCODE_ADDIU(GPR_T0, GPR_T0, i) }).getCodeSize();
+		assertTrue(RecompilingEngine.getNumLoadedClasses() + DynamicRecompiler.getNumUnloadedClasses() >= definedClasses + 32);
+		assertTrue(RecompilingEngine.getLoadedClassBytes() + DynamicRecompiler.getUnloadedClassBytes() >= definedBytes + size);
+		recompiler = null;
+
+		for(int i = 0; i < 100 && DynamicRecompiler.getNumUnloadedClasses() < unloadedClasses + 32; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(DynamicRecompiler.getNumUnloadedClasses() >= unloadedClasses + 32);
+	}
+
+	@Test
+	public void testBlockCache() throws IOException {
+		File directory = File.createTempFile("blocks", "");
+		directory.delete();
+		try {
+			BlockCache blockCache = new BlockCache(directory);
+			for(int run = 0; run < 2; run++) {
+				Cpu[] cpus = createCpus(
+					ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+					ENCODE_BNE(GPR_T0, GPR_A0, BASE_ADDRESS, BASE_ADDRESS + 4),
+					ENCODE_ADDU(GPR_T1, GPR_T1, GPR_T0),
+					ENCODE_WAIT(0));
+				RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+				engine.setBlockCache(blockCache);
+				setGpr(cpus, GPR_A0, 100);
+				step(cpus, 1000);
+				assertTrue(cpus[1].isHalted());
+			}
+			// The second run finds the blocks of the first one
+			assertTrue(blockCache.getNumHits() > 0);
+			assertEquals(blockCache.getNumHits(), blockCache.getNumMisses());
+			assertEquals(0, blockCache.getNumWriteErrors());
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testPerfMap() throws IOException {
+		Cpu[] cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_BNE(GPR_T0, GPR_A0, BASE_ADDRESS, BASE_ADDRESS + 4),
+			ENCODE_ADDU(GPR_T1, GPR_T1, GPR_T0),
+			ENCODE_WAIT(0));
+		cpus[1].setLabelResolver(new LabelResolver() {
+			@Override
+			public int resolveSymbolByName(String name) {
+				return name.equals("count") ? BASE_ADDRESS : 0;
+			}
+
+			@Override
+			public String resolveSymbolByAddress(int address) {
+				return (address == BASE_ADDRESS) ? "count" : null;
+			}
+
+			@Override
+			public int findNearestSymbolAddress(int address) {
+				return (address - BASE_ADDRESS >= 0) ? BASE_ADDRESS : 0;
+			}
+		});
+		File file = File.createTempFile("perf", ".map");
+		PerfMap perfMap = new PerfMap(file);
+		RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+		engine.setPerfMap(perfMap);
+		setGpr(cpus, GPR_A0, 100);
+
+		step(cpus, 1000);
+		assertTrue(cpus[1].isHalted());
+		perfMap.close();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			assertNotNull(line);
+			assertTrue(line, line.startsWith("80100000 c count+0x0 [jmips.cpu.dynrec.Block_"));
+			assertTrue(line, line.endsWith("_count]"));
+		} finally {
+			reader.close();
+			file.delete();
+		}
+		assertEquals(0, perfMap.getNumWriteErrors());
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for(File file : files)
+				deleteDirectory(file);
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testInvalidation() {
+		Cpu[] cpus = createCpus(
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_ADDIU(GPR_T0, GPR_T0, 1),
+			ENCODE_BEQ(GPR_ZR, GPR_ZR, BASE_ADDRESS + 8, BASE_ADDRESS + 8),
+			0);
+		RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+		int physicalAddress = BASE_ADDRESS & 0x1FFFFFFF;
+
+		step(cpus, 100);
+		assertTrue(engine.containsCode(physicalAddress));
+
+		// Data in the same page doesn't affect the translated code
+		for(Cpu cpu : cpus)
+			cpu.store32(BASE_ADDRESS + 0x800, 1);
+		assertTrue(engine.containsCode(physicalAddress));
+
+		for(Cpu cpu : cpus) {
+			cpu.store32(BASE_ADDRESS + 4, ENCODE_ADDIU(GPR_T0, GPR_T0, 100));
+			cpu.setPc(BASE_ADDRESS);
+		}
+		step(cpus, 100);
+		assertEquals(103, cpus[1].getGpr(GPR_T0));
+
+		// The instruction cache operations drop the translated code
+		setGpr(cpus, GPR_A0, BASE_ADDRESS);
+		cpus[1].stepInstruction(ENCODE_CACHE(0x10, GPR_A0, 4));
+		assertFalse(engine.containsCode(physicalAddress));
+	}
+
+	@Test
+	public void testCallsAndReturns() {
+		int function = BASE_ADDRESS + 0x1000; // In the next page
+		Cpu[] cpus = createCpus(
+			ENCODE_JAL(function, BASE_ADDRESS),
+			ENCODE_ADDIU(GPR_A1, GPR_A1, 1),
+			ENCODE_JALR(GPR_RA, GPR_T9),
+			ENCODE_ADDIU(GPR_A1, GPR_A1, 2),
+			ENCODE_ADDIU(GPR_A0, GPR_A0, -1),
+			ENCODE_BNE(GPR_A0, GPR_ZR, BASE_ADDRESS, BASE_ADDRESS + 20),
+			0,
+			ENCODE_WAIT(0));
+		for(Cpu cpu : cpus) {
+			cpu.store32(function, ENCODE_JR(GPR_RA));
+			cpu.store32(function + 4, ENCODE_ADDIU(GPR_T0, GPR_T0, 1));
+		}
+		RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+		engine.setTraceThreshold(0);
+		setGpr(cpus, GPR_A0, 500);
+		setGpr(cpus, GPR_T9, function);
+
+		while (!cpus[0].isHalted())
+			step(cpus, 97);
+		assertTrue(cpus[1].isHalted());
+		assertEquals(1000, cpus[1].getGpr(GPR_T0));
+		assertTrue(engine.getNumPredictedReturns() > 0);
+		assertTrue(engine.getNumInlineCacheHits() > 0);
+	}
+
+	@Test
+	public void testTraces() {
+		// A loop jumping to the next page and back
+		int start = BASE_ADDRESS + 0xFF0;
+		int next = start + 0x20;
+		Cpu[] cpus = createCpus();
+		for(Cpu cpu : cpus) {
+			cpu.store32(start, ENCODE_ADDIU(GPR_T0, GPR_T0, 1));
+			cpu.store32(start + 4, ENCODE_J(next, start + 4));
+			cpu.store32(start + 8, ENCODE_ADDIU(GPR_T2, GPR_T0, 2));
+			cpu.store32(next, ENCODE_ADDIU(GPR_T1, GPR_T1, 3));
+			cpu.store32(next + 4, ENCODE_ADDIU(GPR_A0, GPR_A0, -1));
+			cpu.store32(next + 8, ENCODE_BNE(GPR_A0, GPR_ZR, start, next + 8));
+			cpu.store32(next + 12, 0);
+			cpu.store32(next + 16, ENCODE_WAIT(0));
+			cpu.setPc(start);
+		}
+		RecompilingEngine engine = (RecompilingEngine) cpus[1].getExecutionEngine();
+		engine.setTraceThreshold(10);
+		setGpr(cpus, GPR_A0, 1000);
+
+		for(int i = 0; i < 20; i++)
+			step(cpus, 97);
+		assertTrue(engine.getNumTraces() > 0);
+
+		// Modifying the block in the other page drops the trace
+		for(Cpu cpu : cpus)
+			cpu.store32(next, ENCODE_ADDIU(GPR_T1, GPR_T1, 5));
+		assertEquals(0, engine.getNumTraces());
+
+		while (!cpus[0].isHalted())
+			step(cpus, 97);
+		assertTrue(cpus[1].isHalted());
+	}
+
+	@Test
+	public void testSharedClasses() {
+		ClassCache classCache = new ClassCache();
+		Cpu[][] systems = new Cpu[2][];
+		for(int i = 0; i < systems.length; i++) {
+			systems[i] = createCpus(
+				ENCODE_LW(GPR_T0, GPR_A0, 0),
+				ENCODE_ADDU(GPR_T1, GPR_T1, GPR_T0),
+				ENCODE_ADDIU(GPR_A1, GPR_A1, -1),
+				ENCODE_BNE(GPR_A1, GPR_ZR, BASE_ADDRESS, BASE_ADDRESS + 12),
+				ENCODE_ADDIU(GPR_A0, GPR_A0, 4),
+				ENCODE_WAIT(0));
+			((RecompilingEngine) systems[i][1].getExecutionEngine()).setClassCache(classCache);
+			for(Cpu cpu : systems[i])
+				cpu.store32(DATA_ADDRESS, 7 * i);
+			setGpr(systems[i], GPR_A0, DATA_ADDRESS);
+			setGpr(systems[i], GPR_A1, 100);
+		}
+
+		for(Cpu[] cpus : systems) {
+			while (!cpus[0].isHalted())
+				step(cpus, 97);
+			assertTrue(cpus[1].isHalted());
+		}
+		assertEquals(7, systems[1][1].getGpr(GPR_T1));
+		assertTrue(classCache.getNumClasses() > 0);
+		assertTrue(classCache.getNumHits() > 0);
+
+		// The classes are kept until no engine uses them
+		((RecompilingEngine) systems[0][1].getExecutionEngine()).shutdown();
+		assertTrue(classCache.getNumClasses() > 0);
+		((RecompilingEngine) systems[1][1].getExecutionEngine()).shutdown();
+		assertEquals(0, classCache.getNumClasses());
+	}
+
+	@Test
+	public void testLockstep() {
+		for(int seed = 0; seed < 200; seed++) {
+			LockstepHarness harness = new LockstepHarness(seed);
+			harness.loadRandomProgram(8 + seed % 40, (seed & 1) == 0);
+			if (seed % 4 == 0)
+				((RecompilingEngine) harness.getRecompiled().getCpu().getExecutionEngine()).setTraceThreshold(0);
+			assertTrue("seed " + seed + ": " + harness.getDivergence(), harness.run(5000));
+		}
+
+		// The differences are found and shown with the code
+		LockstepHarness harness = new LockstepHarness(1);
+		harness.loadRandomProgram(16, true);
+		harness.getRecompiled().getCpu().store32(LockstepHarness.DATA_ADDRESS, 0x12345678);
+		harness.getInterpreted().getCpu().store32(LockstepHarness.DATA_ADDRESS, 0);
+		assertFalse(harness.run(0));
+		assertTrue(harness.getDivergence().startsWith("ram at 0x00180000"));
+		assertTrue(harness.getDivergence().contains(String.format("%08X", LockstepHarness.PROGRAM_ADDRESS)));
+	}
 }
@@ -0,0 +1,421 @@
+package jmips.cpu.dynrec;
+
+import static jmips.cpu.Mips.*;
+
+import jmips.MipsSystem;
+import jmips.cpu.Cpu;
+import jmips.cpu.Ram;
+import jmips.tty.DummyTTY;
+import jmips.utils.ReadableSeedRandom;
+
+/**
+ * Runs two systems from the same state in lockstep, one with the
+ * interpreter alone and the other with the recompiler, and compares their
+ * state after every slice of cycles. The slices have random lengths, and
+ * since the recompiled blocks only run when they fit in the budget, they
+ * end at the boundaries of the blocks. The systems run either random
+ * programs or real boot images.
+ */
+public final class LockstepHarness {
+	public static final int PROGRAM_ADDRESS = 0x80100F80; // Crosses a page
+	public static final int DATA_ADDRESS = 0x80180000;
+	public static final int DATA_SIZE = 256;
+	public static final int VECTOR_ADDRESS = 0x80000180;
+
+	// The registers used by the random programs, the data pointer and
+	// the return address included
+	private static final int[] REGISTERS = {
+		GPR_ZR, GPR_A0, GPR_A1, GPR_T0, GPR_T1, GPR_T2, GPR_T3, GPR_T4, GPR_RA
+	};
+	private static final int DATA_REGISTER = GPR_A1;
+
+	// The registers of the coprocessor 0 read by the random programs
+	private static final int[] COP0_REGISTERS = {
+		COP0_BADVADDR, COP0_COUNT, COP0_ENTRYHI, COP0_STATUS, COP0_CAUSE, COP0_EPC
+	};
+
+	private final MipsSystem interpreted;
+	private final MipsSystem recompiled;
+	private final ReadableSeedRandom random;
+
+	private int maxSliceLength = 64;
+	private long digestInterval = 1 << 20;
+
+	private long numSlices;
+	private long lastDigest;
+	private String divergence;
+
+	public LockstepHarness(long seed) {
+		this(4 * 1024 * 1024, seed);
+	}
+
+	public LockstepHarness(int ramSize, long seed) {
+		this(new MipsSystem(new Ram(ramSize), NUM_TLB_ENTRIES, null, new DummyTTY()),
+		     new MipsSystem(new Ram(ramSize), NUM_TLB_ENTRIES, new RecompilingEngine(1, 0), new DummyTTY()),
+		     seed);
+	}
+
+	public LockstepHarness(MipsSystem interpreted, MipsSystem recompiled, long seed) {
+		this.interpreted = interpreted;
+		this.recompiled = recompiled;
+		this.random = new ReadableSeedRandom(seed);
+	}
+
+	public MipsSystem getInterpreted() {
+		return interpreted;
+	}
+
+	public MipsSystem getRecompiled() {
+		return recompiled;
+	}
+
+	public int getMaxSliceLength() {
+		return maxSliceLength;
+	}
+
+	public void setMaxSliceLength(int maxSliceLength) {
+		this.maxSliceLength = maxSliceLength;
+	}
+
+	// Number of cycles between the comparisons of the whole RAM
+	public long getDigestInterval() {
+		return digestInterval;
+	}
+
+	public void setDigestInterval(long digestInterval) {
+		this.digestInterval = digestInterval;
+	}
+
+	public long getNumSlices() {
+		return numSlices;
+	}
+
+	// The description of the first difference found, or null
+	public String getDivergence() {
+		return divergence;
+	}
+
+	// Loads a random program with random data and registers into both
+	// systems. Exceptions return to the start of the program.
+	public void loadRandomProgram(int length, boolean bigEndian) {
+		int[] program = createRandomProgram(random, PROGRAM_ADDRESS, length);
+		int[] data = new int[DATA_SIZE / 4];
+		for(int i = 0; i < data.length; i++)
+			data[i] = random.nextRandomInt();
+		int[] gprs = new int[32];
+		for(int reg : REGISTERS)
+			gprs[reg] = createRandomValue(random);
+		gprs[GPR_ZR] = 0;
+		gprs[DATA_REGISTER] = DATA_ADDRESS + DATA_SIZE / 2;
+
+		for(MipsSystem system : new MipsSystem[] { interpreted, recompiled }) {
+			Cpu cpu = system.getCpu();
+			system.reset();
+			cpu.setBigEndian(bigEndian);
+			cpu.setCop0Reg(COP0_STATUS, 0, cpu.getCop0Reg(COP0_STATUS, 0) & ~STATUS_BEV);
+			cpu.store32(VECTOR_ADDRESS, ENCODE_J(PROGRAM_ADDRESS, VECTOR_ADDRESS));
+			cpu.store32(VECTOR_ADDRESS + 4, 0);
+			for(int i = 0; i < program.length; i++)
+				cpu.store32(PROGRAM_ADDRESS + 4 * i, program[i]);
+			for(int i = 0; i < data.length; i++)
+				cpu.store32(DATA_ADDRESS + 4 * i, data[i]);
+			for(int reg = 0; reg < 32; reg++)
+				cpu.setGpr(reg, gprs[reg]);
+			cpu.setPc(PROGRAM_ADDRESS);
+		}
+	}
+
+	// Loads the boot image into both systems, returning false if it
+	// couldn't be read
+	public boolean loadElf32(String fileName, String cmdLine) {
+		for(MipsSystem system : new MipsSystem[] { interpreted, recompiled }) {
+			int loadAddress = system.loadElf32(fileName);
+			if (loadAddress == 0) return false;
+			system.reset();
+			// Past the BSS of the kernel, where Main puts it as well
+			if (cmdLine != null)
+				system.setKernelCommandLine(cmdLine, (loadAddress + 128 * 4096) & ~4095);
+		}
+		return true;
+	}
+
+	// Runs both systems for at least numCycles cycles, stopping at the
+	// first divergence. Returns true if none was found.
+	public boolean run(long numCycles) {
+		Cpu cpu = interpreted.getCpu();
+		long end = cpu.getCycles() + numCycles;
+		while(divergence == null && cpu.getCycles() < end) {
+			int startPc = cpu.getPc();
+			int length = 1 + random.nextRandomInt(maxSliceLength);
+			interpreted.step(length);
+			recompiled.step(length);
+			numSlices++;
+
+			divergence = compareState();
+			if (divergence == null && cpu.getCycles() - lastDigest >= digestInterval) {
+				lastDigest = cpu.getCycles();
+				divergence = compareRam();
+			}
+			if (divergence != null)
+				divergence = describe(divergence, startPc, length);
+		}
+		if (divergence == null) {
+			divergence = compareRam();
+			if (divergence != null)
+				divergence = describe(divergence, cpu.getPc(), 0);
+		}
+		return divergence == null;
+	}
+
+	private String compareState() {
+		Cpu expected = interpreted.getCpu();
+		Cpu actual = recompiled.getCpu();
+		if (expected.getPc() != actual.getPc())
+			return difference("pc", expected.getPc(), actual.getPc());
+		if (expected.getCycles() != actual.getCycles())
+			return "cycles: " + expected.getCycles() + " != " + actual.getCycles();
+		for(int reg = 0; reg < 32; reg++) {
+			if (expected.getGpr(reg) != actual.getGpr(reg))
+				return difference(REGISTER_NAMES[reg], expected.getGpr(reg), actual.getGpr(reg));
+		}
+		if (expected.getHi() != actual.getHi())
+			return difference("hi", expected.getHi(), actual.getHi());
+		if (expected.getLo() != actual.getLo())
+			return difference("lo", expected.getLo(), actual.getLo());
+		if (expected.isBranchDelaySlot() != actual.isBranchDelaySlot())
+			return "branch delay slot: " + expected.isBranchDelaySlot() + " != " + actual.isBranchDelaySlot();
+		if (expected.isLoadLinkedStatus() != actual.isLoadLinkedStatus())
+			return "load linked: " + expected.isLoadLinkedStatus() + " != " + actual.isLoadLinkedStatus();
+		for(int reg = 0; reg < 32; reg++) {
+			// Reading the random register changes it
+			if (reg == COP0_RANDOM) continue;
+			int value = expected.getCop0Reg(reg, 0);
+			if (value != actual.getCop0Reg(reg, 0))
+				return difference(COP0_REGISTER_NAMES[reg], value, actual.getCop0Reg(reg, 0));
+		}
+		return null;
+	}
+
+	private String compareRam() {
+		Ram expected = interpreted.getCpu().getRam();
+		Ram actual = recompiled.getCpu().getRam();
+		if (digest(expected) == digest(actual)) return null;
+		for(int offset = 0; offset < expected.getRamSize(); offset += 4) {
+			if (expected.read32(offset) != actual.read32(offset))
+				return difference(String.format("ram at 0x%08X", offset), expected.read32(offset), actual.read32(offset));
+		}
+		return null;
+	}
+
+	private static int digest(Ram ram) {
+		int hash = 1;
+		for(int offset = 0; offset < ram.getRamSize(); offset += 4)
+			hash = 31 * hash + ram.read32(offset);
+		return hash;
+	}
+
+	private static String difference(String name, int expected, int actual) {
+		return String.format("%s: 0x%08X != 0x%08X", name, expected, actual);
+	}
+
+	// Adds where the systems were and the code which was run
+	private String describe(String difference, int startPc, int length) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(difference).append('\n');
+		sb.append(String.format("after slice %d of %d cycles, from 0x%08X (cycle %d)%n",
+		          numSlices, length, startPc, interpreted.getCpu().getCycles()));
+		sb.append("code from the start of the slice:\n");
+		appendCode(sb, startPc, 16);
+		sb.append("interpreted stopped at:\n");
+		appendCode(sb, interpreted.getCpu().getPc(), 2);
+		sb.append("recompiled stopped at:\n");
+		appendCode(sb, recompiled.getCpu().getPc(), 2);
+		return sb.toString();
+	}
+
+	// Only the unmapped code is shown, so that the TLB is left alone
+	private void appendCode(StringBuilder sb, int pc, int count) {
+		Ram ram = interpreted.getCpu().getRam();
+		for(int i = 0; i < count; i++, pc += 4) {
+			int physicalAddress = pc & 0x1FFFFFFF;
+			if ((pc & 0xC0000000) != 0x80000000 || physicalAddress >= ram.getRamSize()) {
+				sb.append(String.format("  %08X  (not shown)%n", pc));
+				break;
+			}
+			int opcode = ram.read32(physicalAddress);
+			sb.append(String.format("  %08X  %08X  %s%n", pc, opcode, disassemble(opcode, pc)));
+		}
+	}
+
+	// A random program using the registers in REGISTERS, whose branches
+	// stay inside of the program and whose memory accesses are around
+	// the data pointer. The exceptions it raises (traps, overflows, bad
+	// addresses) go back to the start of the program.
+	public static int[] createRandomProgram(ReadableSeedRandom random, int address, int length) {
+		int[] program = new int[length];
+		for(int i = 0; i < length; i++)
+			program[i] = createRandomInstruction(random, address + 4 * i, address, length);
+		return program;
+	}
+
+	// Mostly small values, often equal to each other or to the small
+	// immediates, so that the branches and the traps go both ways
+	private static int createRandomValue(ReadableSeedRandom random) {
+		switch(random.nextRandomInt(4)) {
+		case 0: return random.nextRandomInt();
+		case 1: return random.nextRandomInt(5) - 2;
+		default: return random.nextRandomInt(200) - 100;
+		}
+	}
+
+	private static int createRandomInstruction(ReadableSeedRandom random, int pc, int address, int length) {
+		int rd = REGISTERS[random.nextRandomInt(REGISTERS.length)];
+		int rs = REGISTERS[random.nextRandomInt(REGISTERS.length)];
+		int rt = REGISTERS[random.nextRandomInt(REGISTERS.length)];
+		int imm = (random.nextRandomInt(3) == 0) ? random.nextRandomInt(16) - 8 : random.nextRandomInt(65536) - 32768;
+		int target = address + 4 * random.nextRandomInt(length);
+		int offset = random.nextRandomInt(32) - 16;
+		int small = random.nextRandomInt(5) - 2;
+		int cop0Reg = COP0_REGISTERS[random.nextRandomInt(COP0_REGISTERS.length)];
+
+		switch(random.nextRandomInt(94)) {
+		case 0: return ENCODE_ADD(rd, rs, rt);
+		case 1: return ENCODE_ADDI(rt, rs, imm);
+		case 2: return ENCODE_ADDIU(rt, rs, imm);
+		case 3: return ENCODE_ADDU(rd, rs, rt);
+		case 4: return ENCODE_AND(rd, rs, rt);
+		case 5: return ENCODE_ANDI(rt, rs, imm & 0xFFFF);
+		case 6: return ENCODE_BEQ(rs, rt, target, pc);
+		case 7: return ENCODE_BEQL(rs, rt, target, pc);
+		case 8: return ENCODE_BGEZ(rs, target, pc);
+		case 9: return ENCODE_BGEZAL(rs, target, pc);
+		case 10: return ENCODE_BGEZALL(rs, target, pc);
+		case 11: return ENCODE_BGTZL(rs, target, pc);
+		case 12: return ENCODE_BLEZ(rs, target, pc);
+		case 13: return ENCODE_BLTZAL(rs, target, pc);
+		case 14: return ENCODE_BNE(rs, rt, target, pc);
+		case 15: return ENCODE_BNEL(rs, rt, target, pc);
+		case 16: return ENCODE_CLO(rd, rs);
+		case 17: return ENCODE_CLZ(rd, rs);
+		case 18: return ENCODE_DIV(rs, rt);
+		case 19: return ENCODE_DIVU(rs, rt);
+		case 20: return ENCODE_J(target, pc);
+		case 21: return ENCODE_JAL(target, pc);
+		case 22: return ENCODE_JR(rs);
+		case 23: return ENCODE_JALR(rd, rs);
+		case 24: return ENCODE_LB(rt, DATA_REGISTER, offset);
+		case 25: return ENCODE_LBU(rt, DATA_REGISTER, offset);
+		case 26: return ENCODE_LH(rt, DATA_REGISTER, offset);
+		case 27: return ENCODE_LHU(rt, DATA_REGISTER, offset);
+		case 28: return ENCODE_LW(rt, DATA_REGISTER, offset);
+		case 29: return ENCODE_LWL(rt, DATA_REGISTER, offset);
+		case 30: return ENCODE_LWR(rt, DATA_REGISTER, offset);
+		case 31: return ENCODE_LUI(rt, imm & 0xFFFF);
+		case 32: return ENCODE_MADD(rs, rt);
+		case 33: return ENCODE_MADDU(rs, rt);
+		case 34: return ENCODE_MFHI(rd);
+		case 35: return ENCODE_MFLO(rd);
+		case 36: return ENCODE_MOVN(rd, rs, rt);
+		case 37: return ENCODE_MOVZ(rd, rs, rt);
+		case 38: return ENCODE_MSUB(rs, rt);
+		case 39: return ENCODE_MSUBU(rs, rt);
+		case 40: return ENCODE_MTHI(rs);
+		case 41: return ENCODE_MTLO(rs);
+		case 42: return ENCODE_MUL(rd, rs, rt);
+		case 43: return ENCODE_MULT(rs, rt);
+		case 44: return ENCODE_MULTU(rs, rt);
+		case 45: return ENCODE_NOR(rd, rs, rt);
+		case 46: return ENCODE_OR(rd, rs, rt);
+		case 47: return ENCODE_ORI(rt, rs, imm & 0xFFFF);
+		case 48: return ENCODE_SB(rt, DATA_REGISTER, offset);
+		case 49: return ENCODE_SH(rt, DATA_REGISTER, offset);
+		case 50: return ENCODE_SW(rt, DATA_REGISTER, offset);
+		case 51: return ENCODE_SLL(rd, rt, random.nextRandomInt(32));
+		case 52: return ENCODE_SLTIU(rt, rs, imm);
+		case 53: return ENCODE_SLTU(rd, rs, rt);
+		case 54: return ENCODE_SRAV(rd, rt, rs);
+		case 55: return ENCODE_SUB(rd, rs, rt);
+		case 56: return ENCODE_SUBU(rd, rs, rt);
+		case 57: return ENCODE_XORI(rt, rs, imm & 0xFFFF);
+		case 58: return ENCODE_LL(rt, DATA_REGISTER, offset & ~3);
+		case 59: return ENCODE_SC(rt, DATA_REGISTER, offset & ~3);
+		case 60: return ENCODE_SWL(rt, DATA_REGISTER, offset);
+		case 61: return ENCODE_SWR(rt, DATA_REGISTER, offset);
+		case 62: return ENCODE_SLT(rd, rs, rt);
+		case 63: return ENCODE_SLTI(rt, rs, imm);
+		case 64: return ENCODE_SRL(rd, rt, random.nextRandomInt(32));
+		case 65: return ENCODE_SRA(rd, rt, random.nextRandomInt(32));
+		case 66: return ENCODE_SRLV(rd, rt, rs);
+		case 67: return ENCODE_SLLV(rd, rt, rs);
+		case 68: return ENCODE_XOR(rd, rs, rt);
+		case 69: return ENCODE_BLTZ(rs, target, pc);
+		case 70: return ENCODE_BGTZ(rs, target, pc);
+		case 71: return ENCODE_BLEZL(rs, target, pc);
+		case 72: return ENCODE_BLTZL(rs, target, pc);
+		case 73: return ENCODE_BGEZL(rs, target, pc);
+		case 74: return ENCODE_BLTZALL(rs, target, pc);
+		case 75: return ENCODE_TEQ(rs, rt, 0);
+		case 76: return ENCODE_TNE(rs, rt, 0);
+		case 77: return ENCODE_TGE(rs, rt, 0);
+		case 78: return ENCODE_TGEU(rs, rt, 0);
+		case 79: return ENCODE_TLT(rs, rt, 0);
+		case 80: return ENCODE_TLTU(rs, rt, 0);
+		case 81: return ENCODE_TEQI(rs, small);
+		case 82: return ENCODE_TNEI(rs, small);
+		case 83: return ENCODE_TGEI(rs, small);
+		case 84: return ENCODE_TGEIU(rs, small);
+		case 85: return ENCODE_TLTI(rs, small);
+		case 86: return ENCODE_TLTIU(rs, small);
+		case 87: return ENCODE_SYSCALL(0);
+		case 88: return ENCODE_BREAK(0);
+		// The instructions of the coprocessor 0 end the blocks
+		case 89: return ENCODE_MFC0(rt, cop0Reg, 0);
+		case 90: return ENCODE_MTC0(rt, COP0_EPC, 0);
+		case 91: return ENCODE_MTC0(rt, COP0_ENTRYHI, 0);
+		case 92: return ENCODE_TLBP();
+		default: return ENCODE_CACHE(0, DATA_REGISTER, offset);
+		}
+	}
+
+	// Usage: LockstepHarness <boot image> [cycles] [command line]
+	//    or: LockstepHarness -random [programs]
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("usage: LockstepHarness <boot image> [cycles] [command line]");
+			System.out.println("       LockstepHarness -random [programs]");
+			return;
+		}
+
+		if (args[0].equals("-random")) {
+			int numPrograms = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+			for(int seed = 0; seed < numPrograms; seed++) {
+				LockstepHarness harness = new LockstepHarness(seed);
+				harness.setMaxSliceLength(300);
+				harness.loadRandomProgram(8 + seed % 40, (seed & 1) == 0);
+				if (!harness.run(10000)) {
+					System.out.println("seed " + seed + ": " + harness.getDivergence());
+					return;
+				}
+			}
+			System.out.println("no divergence in " + numPrograms + " programs");
+			return;
+		}
+
+		long numCycles = (args.length > 1) ? Long.parseLong(args[1]) : 100000000L;
+		String cmdLine = (args.length > 2) ? args[2] : "console=ttyS0";
+		LockstepHarness harness = new LockstepHarness(MipsSystem.DEFAULT_RAM_SIZE, 0);
+		if (!harness.loadElf32(args[0], cmdLine)) {
+			System.out.println("can't load " + args[0]);
+			return;
+		}
+		long start = System.currentTimeMillis();
+		boolean same = harness.run(numCycles);
+		long time = System.currentTimeMillis() - start;
+		if (same)
+			System.out.println("no divergence in " + harness.getNumSlices() + " slices");
+		else
+			System.out.println(harness.getDivergence());
+		System.out.println("time: " + time + "ms");
+		System.out.println(new String(((DummyTTY) harness.getInterpreted().getTTY()).getOutputBytes()));
+	}
+}